@@ -0,0 +1,397 @@
+package sudoku;
+
+import static sudoku.Topology.CELLS;
+import static sudoku.Topology.SIZE;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ *  Off-heap solver workspace
+ *
+ *  The same constraint propagation as Solver.assign/eliminate followed by a
+ *  depth first search, but with every square's possible values held as a
+ *  9-bit mask (bit d-1 set means digit d is still possible) in a direct
+ *  ByteBuffer that is allocated once and reused for every puzzle.
+ *
+ *  Where Solver.eliminate deep clones the whole board for every elimination,
+ *  an Arena keeps one board per search level and copies a level only when it
+ *  branches.  The memory is laid out as:
+ *
+ *      boards   DEPTH levels of 81 shorts (candidate masks)
+ *      trail    DEPTH pairs of shorts (branch square, digits left to try)
+ *
+ *  Once constructed, solving allocates nothing on the Java heap.  An Arena is
+ *  not thread safe; use one per worker thread (see BatchSolver).
+ *
+ *  The branching order is set by a Heuristic and an optional random seed
+ *  (0 for none) that rotates where the square scan starts and shuffles the
+ *  order digits are tried in.  Different settings can find a solution in
+ *  very different times on the same puzzle; see Portfolio.
+ *
+ *  Puzzles and solutions are 81 bytes each in square order.  Input bytes
+ *  '1'-'9' are givens, anything else is an unfilled square.  Solutions are
+ *  written as '1'-'9', or all '.' when the puzzle has no solution.
+ */
+public final class Arena {
+
+    /* How search picks the square to branch on. */
+    public enum Heuristic {
+        FEWEST,        // fewest possibilities, first found (Norvig's choice)
+        FEWEST_LAST,   // fewest possibilities, scanning from the last square
+        FIRST          // first unfilled square
+    }
+
+    static final int ALL = 0x1FF;
+    static final int DEPTH = CELLS + 1;   // every level fills at least one square
+
+    private final int[] unitCells;
+    private final int[] cellUnitStart;
+    private final int[] cellUnits;
+    private final int[] peerStart;
+    private final int[] peers;
+    private final Heuristic heuristic;
+    private final long seed;
+
+    private final ByteBuffer memory;
+    private final ShortBuffer boards;
+    private final ShortBuffer trail;
+
+    private int solvedLevel;
+    private long nodes;
+    private long random;
+    private AtomicBoolean stop;
+    private boolean stopped;
+
+    public Arena() {
+        this(Topology.CLASSIC);
+    }
+
+    public Arena(Topology topology) {
+        this(topology, Heuristic.FEWEST, 0);
+    }
+
+    public Arena(Topology topology, Heuristic heuristic, long seed) {
+        this.heuristic = heuristic;
+        this.seed = seed;
+        this.unitCells = topology.unitCells;
+        this.cellUnitStart = topology.cellUnitStart;
+        this.cellUnits = topology.cellUnits;
+        this.peerStart = topology.peerStart;
+        this.peers = topology.peers;
+
+        int boardBytes = DEPTH * CELLS * 2;
+        int trailBytes = DEPTH * 2 * 2;
+        memory = ByteBuffer.allocateDirect(boardBytes + trailBytes).order(ByteOrder.nativeOrder());
+        memory.limit(boardBytes);
+        boards = memory.slice().order(ByteOrder.nativeOrder()).asShortBuffer();
+        memory.limit(boardBytes + trailBytes).position(boardBytes);
+        trail = memory.slice().order(ByteOrder.nativeOrder()).asShortBuffer();
+        memory.clear();
+    }
+
+    /* Number of branches tried by the last solve. */
+    public long nodes() {
+        return nodes;
+    }
+
+    /*
+     * Give up (solve returns false) as soon as stop is set.  It is checked
+     * once per branch, so another thread can cancel a running search.
+     * Pass null to never stop.
+     */
+    public void stopOn(AtomicBoolean stop) {
+        this.stop = stop;
+    }
+
+    /* True if the last solve gave up because of stopOn. */
+    public boolean stopped() {
+        return stopped;
+    }
+
+    public Heuristic heuristic() {
+        return heuristic;
+    }
+
+    public long seed() {
+        return seed;
+    }
+
+    /*
+     * Solve the puzzle at in[inOffset..inOffset+81) and write the solution to
+     * out[outOffset..outOffset+81).  Returns false if there is no solution.
+     * Only absolute get/put are used, so several arenas may share in and out.
+     */
+    public boolean solve(ByteBuffer in, int inOffset, ByteBuffer out, int outOffset) {
+        return write(load(in, inOffset) && search(), out, outOffset);
+    }
+
+    /*
+     * Heap convenience: puzzle and solution are int[81], 0 for unfilled.
+     * solution is left untouched when there is no solution.
+     */
+    public boolean solve(int[] puzzle, int[] solution) {
+        reset();
+
+        boolean ok = true;
+        for (int s = 0; s < CELLS && ok; s++) {
+            int c = puzzle[s];
+            if (c >= 1 && c <= SIZE)
+                ok = assign(0, s, 1 << (c - 1));
+        }
+        return finish(ok && search(), solution);
+    }
+
+    /*
+     * Solve from a board of candidate masks (e.g. from candidates()) with
+     * digit placed in square first; a negative square places nothing.
+     * solution is left untouched when there is no solution.
+     */
+    public boolean solve(int[] masks, int square, int digit, int[] solution) {
+        reset();
+        for (int s = 0; s < CELLS; s++)
+            boards.put(s, (short) masks[s]);
+
+        boolean ok = square < 0 || assign(0, square, 1 << (digit - 1));
+        return finish(ok && search(), solution);
+    }
+
+    private static final float[] LOG2 = { 0f, 0f, 1f, 1.585f, 2f, 2.322f, 2.585f, 2.807f, 3f, 3.170f };
+
+    /*
+     * Load the puzzle at in[inOffset] and propagate the givens, without any
+     * search.  Returns the candidate entropy left, the sum over squares of
+     * log2(possibilities), in bits: 0 when propagation alone solved it and
+     * -1 on a contradiction.  The board stays loaded for candidates().
+     */
+    public float propagate(ByteBuffer in, int inOffset) {
+        return load(in, inOffset) ? entropy() : -1f;
+    }
+
+    /*
+     * Load a board of candidate masks, place digit in square (a negative
+     * square places nothing) and propagate, without any search.  Returns
+     * the entropy left as propagate(ByteBuffer, int) does.
+     */
+    public float propagate(int[] masks, int square, int digit) {
+        reset();
+        for (int s = 0; s < CELLS; s++)
+            boards.put(s, (short) masks[s]);
+        return (square < 0 || assign(0, square, 1 << (digit - 1))) ? entropy() : -1f;
+    }
+
+    private float entropy() {
+        float bits = 0f;
+        for (int s = 0; s < CELLS; s++)
+            bits += LOG2[Integer.bitCount(boards.get(s))];
+        return bits;
+    }
+
+    /*
+     * Search on from the board the last propagate() left loaded, which must
+     * not have returned -1, without loading or propagating it again.
+     * solution is left untouched when there is no solution.
+     */
+    public boolean search(int[] solution) {
+        return finish(search(), solution);
+    }
+
+    /* Copy the propagated board into masks[81]. */
+    public void candidates(int[] masks) {
+        for (int s = 0; s < CELLS; s++)
+            masks[s] = boards.get(s);
+    }
+
+    /* Copy the propagated board into to[offset..offset+81). */
+    public void candidates(ShortBuffer to, int offset) {
+        for (int s = 0; s < CELLS; s++)
+            to.put(offset + s, boards.get(s));
+    }
+
+    /*
+     * Search on from a board saved by candidates(ShortBuffer, int) and write
+     * the solution as in solve(ByteBuffer, int, ByteBuffer, int).
+     */
+    public boolean solve(ShortBuffer from, int offset, ByteBuffer out, int outOffset) {
+        reset();
+        for (int s = 0; s < CELLS; s++)
+            boards.put(s, from.get(offset + s));
+        return write(search(), out, outOffset);
+    }
+
+    private boolean load(ByteBuffer in, int inOffset) {
+        reset();
+
+        boolean ok = true;
+        for (int s = 0; s < CELLS && ok; s++) {
+            int c = in.get(inOffset + s) - '0';
+            if (c >= 1 && c <= SIZE)
+                ok = assign(0, s, 1 << (c - 1));
+        }
+        return ok;
+    }
+
+    private boolean write(boolean ok, ByteBuffer out, int outOffset) {
+        int base = solvedLevel * CELLS;
+        for (int s = 0; s < CELLS; s++) {
+            byte b = (byte) '.';
+            if (ok)
+                b = (byte) ('1' + Integer.numberOfTrailingZeros(boards.get(base + s)));
+            out.put(outOffset + s, b);
+        }
+        return ok;
+    }
+
+    private boolean finish(boolean ok, int[] solution) {
+        if (ok) {
+            int base = solvedLevel * CELLS;
+            for (int s = 0; s < CELLS; s++)
+                solution[s] = 1 + Integer.numberOfTrailingZeros(boards.get(base + s));
+        }
+        return ok;
+    }
+
+    private void reset() {
+        nodes = 0;
+        stopped = false;
+        random = seed;
+        for (int s = 0; s < CELLS; s++)
+            boards.put(s, (short) ALL);
+    }
+
+    /* Eliminate all values except bit from square s of the board at base. */
+    private boolean assign(int base, int s, int bit) {
+        int other = boards.get(base + s) & ~bit;
+        while (other != 0) {
+            int b = other & -other;
+            if (!eliminate(base, s, b))
+                return false;
+            other &= other - 1;
+        }
+        return true;
+    }
+
+    /* Eliminate bit from square s and propagate, as in Solver.eliminate. */
+    private boolean eliminate(int base, int s, int bit) {
+        int values = boards.get(base + s);
+        if ((values & bit) == 0)
+            return true;                   // already eliminated
+
+        values &= ~bit;
+        boards.put(base + s, (short) values);
+        if (values == 0)
+            return false;                  // contradiction
+
+        // Down to one value: remove it from the peers.
+        if ((values & (values - 1)) == 0) {
+            for (int i = peerStart[s]; i < peerStart[s + 1]; i++) {
+                if (!eliminate(base, peers[i], values))
+                    return false;
+            }
+        }
+
+        // A unit with only one place left for bit: put it there.
+        for (int i = cellUnitStart[s]; i < cellUnitStart[s + 1]; i++) {
+            int u = cellUnits[i] * SIZE;
+            int count = 0, place = -1;
+            for (int k = 0; k < SIZE && count < 2; k++) {
+                int t = unitCells[u + k];
+                if ((boards.get(base + t) & bit) != 0) {
+                    count++;
+                    place = t;
+                }
+            }
+            if (count == 0)
+                return false;
+            if (count == 1 && !assign(base, place, bit))
+                return false;
+        }
+        return true;
+    }
+
+    /* Unfilled square to branch on according to the heuristic, or -1 if solved. */
+    private int choose(int base) {
+        int best = -1, fewest = SIZE + 1;
+        int start = (seed != 0) ? (int) ((next() >>> 1) % CELLS) : 0;
+        for (int i = 0; i < CELLS; i++) {
+            int s = start + i;
+            if (s >= CELLS)
+                s -= CELLS;
+            if (heuristic == Heuristic.FEWEST_LAST)
+                s = CELLS - 1 - s;
+            int n = Integer.bitCount(boards.get(base + s));
+            if (n > 1) {
+                if (heuristic == Heuristic.FIRST)
+                    return s;
+                if (n < fewest) {
+                    best = s;
+                    fewest = n;
+                    if (n == 2)
+                        break;
+                }
+            }
+        }
+        return best;
+    }
+
+    /* Next digit bit to try out of left: the lowest, or a random one when seeded. */
+    private int pick(int left) {
+        if (seed == 0)
+            return left & -left;
+        int k = (int) ((next() >>> 1) % Integer.bitCount(left));
+        while (k-- > 0)
+            left &= left - 1;
+        return left & -left;
+    }
+
+    /* xorshift64 */
+    private long next() {
+        random ^= random << 13;
+        random ^= random >>> 7;
+        random ^= random << 17;
+        return random;
+    }
+
+    /* Depth first search from level 0, keeping the choices in the trail. */
+    private boolean search() {
+        int level = 0;
+        next:
+        while (true) {
+            int base = level * CELLS;
+            int s = choose(base);
+            if (s < 0) {
+                solvedLevel = level;
+                return true;
+            }
+            trail.put(2 * level, (short) s);
+            trail.put(2 * level + 1, boards.get(base + s));
+
+            while (true) {
+                int left = trail.get(2 * level + 1);
+                if (left == 0) {
+                    if (level == 0)
+                        return false;
+                    level--;           // out of choices: back up a level
+                    continue;
+                }
+                if (null != stop && stop.get()) {
+                    stopped = true;
+                    return false;
+                }
+                int bit = pick(left);
+                trail.put(2 * level + 1, (short) (left & ~bit));
+
+                int from = level * CELLS, to = from + CELLS;
+                for (int t = 0; t < CELLS; t++)
+                    boards.put(to + t, boards.get(from + t));
+                nodes++;
+                if (assign(to, trail.get(2 * level), bit)) {
+                    level++;
+                    continue next;
+                }
+            }
+        }
+    }
+}
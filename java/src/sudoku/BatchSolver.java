@@ -0,0 +1,193 @@
+package sudoku;
+
+import static sudoku.Topology.CELLS;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *  Batch solver
+ *
+ *  Solves many puzzles packed back to back in a ByteBuffer (81 bytes each,
+ *  see Arena) and writes the solutions to the same offsets of an output
+ *  ByteBuffer.  Each worker thread owns one Arena for the life of the
+ *  BatchSolver, so in steady state nothing is allocated per puzzle: the
+ *  puzzles, the candidate boards, the search trail and the solutions all
+ *  live off heap.
+ *
+ *  Workers claim puzzles in small blocks from a shared counter, so a few
+ *  hard puzzles do not hold up a whole pre-assigned slice.
+ */
+public final class BatchSolver implements AutoCloseable {
+
+    static final int BLOCK = 16;
+
+    private final Worker[] workers;
+    private final ExecutorService pool;
+    private final AtomicInteger next = new AtomicInteger();
+    private final AtomicInteger solved = new AtomicInteger();
+    private final List<Future<?>> running;
+
+    private ByteBuffer in, out;
+    private int count;
+
+    public BatchSolver(int threads) {
+        this(threads, Topology.CLASSIC);
+    }
+
+    public BatchSolver(int threads, Topology topology) {
+        if (threads < 1)
+            throw new IllegalArgumentException("threads must be at least 1");
+
+        workers = new Worker[threads];
+        for (int i = 0; i < threads; i++)
+            workers[i] = new Worker(new Arena(topology));
+        running = new ArrayList<Future<?>>(threads);
+
+        // With one thread the caller does the work itself.
+        pool = (threads > 1) ? Executors.newFixedThreadPool(threads, new DaemonFactory()) : null;
+    }
+
+    public int threads() {
+        return workers.length;
+    }
+
+    /*
+     * Solve count puzzles from in and write their solutions to out, both
+     * starting at offset 0.  Returns the number of puzzles solved; unsolvable
+     * puzzles get a row of '.'s.  Not reentrant: one batch at a time.
+     */
+    public synchronized int solve(ByteBuffer in, ByteBuffer out, int count) {
+        if (count < 0 || count > in.capacity() / CELLS || count > out.capacity() / CELLS)
+            throw new IllegalArgumentException("Buffers too small for " + count + " puzzles");
+
+        this.in = in;
+        this.out = out;
+        this.count = count;
+        next.set(0);
+        solved.set(0);
+
+        RuntimeException failure = null;
+        try {
+            if (null == pool) {
+                workers[0].run();
+            }
+            else {
+                running.clear();
+                for (Worker w: workers)
+                    running.add(pool.submit(w));
+                failure = await();
+            }
+        }
+        finally {
+            this.in = null;
+            this.out = null;
+        }
+        if (null != failure)
+            throw failure;
+        return solved.get();
+    }
+
+    /*
+     * Wait for every worker, even after one fails or the caller is
+     * interrupted, so that none still uses in or out once solve() returns.
+     * The rest are stopped by handing out no more puzzles.  Returns the
+     * first failure, or null.
+     */
+    private RuntimeException await() {
+        RuntimeException failure = null;
+        boolean interrupted = false;
+        for (Future<?> f: running) {
+            while (true) {
+                try {
+                    f.get();
+                    break;
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                    next.set(count);
+                    if (null == failure)
+                        failure = new IllegalStateException("Batch interrupted", e);
+                }
+                catch (ExecutionException e) {
+                    next.set(count);
+                    if (null == failure)
+                        failure = new IllegalStateException("Batch worker failed", e.getCause());
+                    break;
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        return failure;
+    }
+
+    @Override
+    public void close() {
+        if (null != pool)
+            pool.shutdownNow();
+    }
+
+    /* Write puzzle as 81 bytes at in[offset]; false if it is not 81 squares. */
+    public static boolean encode(String puzzle, ByteBuffer in, int offset) {
+        int n = 0;
+        for (int i = 0; i < puzzle.length() && n <= CELLS; i++) {
+            char c = puzzle.charAt(i);
+            if (c == '.' || (c >= '0' && c <= '9')) {
+                if (n < CELLS)
+                    in.put(offset + n, (byte) c);
+                n++;
+            }
+        }
+        return n == CELLS;
+    }
+
+    /* Read 81 bytes at buf[offset] back as a string. */
+    public static String decode(ByteBuffer buf, int offset) {
+        char[] c = new char[CELLS];
+        for (int i = 0; i < CELLS; i++)
+            c[i] = (char) buf.get(offset + i);
+        return new String(c);
+    }
+
+    /* A named class rather than a lambda keeps invokedynamic bootstrap off the startup path. */
+    static final class DaemonFactory implements ThreadFactory {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "sudoku-batch");
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+    private final class Worker implements Runnable {
+        private final Arena arena;
+
+        Worker(Arena arena) {
+            this.arena = arena;
+        }
+
+        @Override
+        public void run() {
+            int done = 0;
+            while (true) {
+                int first = next.getAndAdd(BLOCK);
+                if (first >= count)
+                    break;
+                int last = Math.min(first + BLOCK, count);
+                for (int i = first; i < last; i++) {
+                    if (arena.solve(in, i * CELLS, out, i * CELLS))
+                        done++;
+                }
+            }
+            solved.addAndGet(done);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package sudoku;
+
+import static sudoku.Topology.CELLS;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ *  Solver timings
+ *
+ *  1. The standard puzzles with Norvig's Solver and with an Arena on
+ *     Topology.CLASSIC: what the flat-table fast path is worth.
+ *  2. Generated puzzles for classic, X-Sudoku and windoku, all solved by
+ *     Arenas on compiled Variants: what extra units cost on the same path.
+ *     Every variant gets the same number of puzzles, made the same way: a
+ *     seeded Arena fills an empty grid and the same squares are kept as
+ *     givens (the standard puzzles mostly break the X and windoku rules).
+ *
+ *  Rounds alternate between the contenders so they see the same JIT and
+ *  cache state; the first quarter of the rounds is warm up.
+ *
+ *      java -cp out sudoku.Benchmark [rounds]
+ */
+public final class Benchmark {
+
+    static final int GENERATED = 200;
+    static final int GIVENS = 28;
+
+    public static void main(String[] args) {
+        int rounds = (args.length > 0) ? Integer.parseInt(args[0]) : 40;
+
+        List<String> puzzles = new ArrayList<String>();
+        puzzles.addAll(Puzzles.easyPuzzles);
+        puzzles.addAll(Puzzles.hardPuzzles);
+        standard(puzzles, rounds);
+        variants(new Variant[] { Variant.classic(), Variant.x(), Variant.windoku() }, rounds);
+    }
+
+    private static void standard(List<String> puzzles, int rounds) {
+        int n = puzzles.size();
+        ByteBuffer in = ByteBuffer.allocateDirect(n * CELLS);
+        ByteBuffer out = ByteBuffer.allocateDirect(n * CELLS);
+        for (int i = 0; i < n; i++)
+            BatchSolver.encode(puzzles.get(i), in, i * CELLS);
+        Arena arena = new Arena(Topology.CLASSIC);
+
+        long norvig = 0, fast = 0;
+        for (int r = -rounds / 4; r < rounds; r++) {
+            long start = System.nanoTime();
+            for (String p: puzzles) {
+                Map<String, List<String>> s = Solver.solve(p);
+                if (!Validator.isSolution(p, s))
+                    throw new IllegalStateException("Solver failed on " + p);
+            }
+            long t1 = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                if (!arena.solve(in, i * CELLS, out, i * CELLS))
+                    throw new IllegalStateException("Arena failed on " + puzzles.get(i));
+            }
+            long t2 = System.nanoTime();
+            if (r >= 0) {
+                norvig += t1 - start;
+                fast += t2 - t1;
+            }
+        }
+
+        System.out.printf("standard puzzles (%d), %d rounds%n", n, rounds);
+        System.out.printf("  %-18s %10.1f us/puzzle%n", "Solver", norvig / 1e3 / rounds / n);
+        System.out.printf("  %-18s %10.1f us/puzzle %8.1fx%n", "Arena classic", fast / 1e3 / rounds / n,
+                (double) norvig / fast);
+    }
+
+    private static void variants(Variant[] variants, int rounds) {
+        int v = variants.length;
+        Arena[] arenas = new Arena[v];
+        int[][][] puzzles = new int[v][][];
+        for (int k = 0; k < v; k++) {
+            Topology t = variants[k].compile();
+            arenas[k] = new Arena(t);
+            puzzles[k] = generate(t);
+        }
+
+        long[] total = new long[v];
+        int[] solution = new int[CELLS];
+        for (int r = -rounds / 4; r < rounds; r++) {
+            for (int j = 0; j < v; j++) {
+                int k = (j + r + rounds) % v;          // rotate who goes first
+                long start = System.nanoTime();
+                for (int[] p: puzzles[k]) {
+                    if (!arenas[k].solve(p, solution))
+                        throw new IllegalStateException(variants[k].name() + " puzzle not solved");
+                }
+                if (r >= 0)
+                    total[k] += System.nanoTime() - start;
+            }
+        }
+
+        System.out.printf("generated puzzles (%d each, %d givens), %d rounds%n", GENERATED, GIVENS, rounds);
+        for (int k = 0; k < v; k++) {
+            System.out.printf("  %-18s %10.1f us/puzzle %8.3f of classic%n", variants[k].name(),
+                    total[k] / 1e3 / rounds / GENERATED, (double) total[k] / total[0]);
+        }
+    }
+
+    /* GENERATED puzzles for t: seeded fills of an empty grid, keeping the same GIVENS squares of each. */
+    private static int[][] generate(Topology t) {
+        int[][] puzzles = new int[GENERATED][];
+        int[] grid = new int[CELLS];
+        for (int i = 0; i < GENERATED; i++) {
+            Arena filler = new Arena(t, Arena.Heuristic.FEWEST, 0x9E3779B97F4A7C15L * (i + 1));
+            if (!filler.solve(new int[CELLS], grid))
+                throw new IllegalStateException("Cannot fill a " + t.name() + " grid");
+
+            Random random = new Random(i);
+            int[] p = new int[CELLS];
+            for (int kept = 0; kept < GIVENS; ) {
+                int s = random.nextInt(CELLS);
+                if (p[s] == 0) {
+                    p[s] = grid[s];
+                    kept++;
+                }
+            }
+            puzzles[i] = p;
+        }
+        return puzzles;
+    }
+}
@@ -0,0 +1,283 @@
+package sudoku;
+
+import static sudoku.Topology.CELLS;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ *  Command line front end
+ *
+ *      java -cp <classes> sudoku.Cli [options] [file ...]
+ *
+ *  Reads puzzles from the named files (or stdin when there are none, or for
+ *  "-") and writes one solution per puzzle to stdout, in input order.  As in
+ *  Puzzles.java, every character other than [0-9.] is ignored, so puzzles may
+ *  be one 81 character line each or spread over several lines as a grid.
+ *  A '#' starts a comment that runs to the end of the line.  Solutions are
+ *  written whenever the input pauses, so Cli also works as a filter behind
+ *  a slow producer.
+ *
+ *  Options:
+ *      -f, --format compact|grid|candidates
+ *                                   output format (default compact, see Renderer)
+ *      -t, --threads N              worker threads (default: all processors)
+ *      -e, --engine arena|norvig    Arena bitmask engine (default) or Solver
+ *      -v, --variant classic|x|windoku|jigsaw:LAYOUT
+ *                                   puzzle rules (default classic, see Variant);
+ *                                   the norvig engine only solves classic
+ *
+ *  Unsolvable puzzles are written as 81 '.'s.  The exit status is 0 when
+ *  every puzzle was solved, 1 when some were not and 2 for usage errors.
+ *
+ *  Startup: the arena path loads only Cli, Engine, BatchSolver, Arena,
+ *  Topology and Renderer, whose static initialization is a few int loops,
+ *  and none use lambdas or reflection.  That keeps the classes friendly to an AppCDS
+ *  archive, e.g.
+ *
+ *      java -XX:ArchiveClassesAtExit=sudoku.jsa -cp <classes> sudoku.Cli < puzzles.txt
+ *      java -XX:SharedArchiveFile=sudoku.jsa -cp <classes> sudoku.Cli < puzzles.txt
+ */
+public final class Cli {
+
+    static final int CHUNK = 4096;    // puzzles solved per batch
+
+    private final Renderer renderer;
+    private final Engine engine;
+    private final Topology topology;
+    private final int threads;
+    private final OutputStream out;
+    private final WritableByteChannel channel;
+
+    private final ByteBuffer puzzles = ByteBuffer.allocateDirect(CHUNK * CELLS);
+    private final ByteBuffer solutions = ByteBuffer.allocateDirect(CHUNK * CELLS);
+    private BatchSolver batch;
+    private ExecutorService pool;
+
+    private int count;        // puzzles in the current chunk
+    private int squares;      // squares read of the puzzle being read
+    private long unsolved;
+
+    Cli(Renderer.Format format, Engine engine, int threads, OutputStream out) {
+        this(format, engine, Topology.CLASSIC, threads, out);
+    }
+
+    Cli(Renderer.Format format, Engine engine, Topology topology, int threads, OutputStream out) {
+        if (engine == Engine.NORVIG && !topology.isClassic())
+            throw new IllegalArgumentException("The norvig engine only solves classic puzzles");
+        this.renderer = new Renderer(format);
+        this.engine = engine;
+        this.topology = topology;
+        this.threads = threads;
+        this.out = out;
+        this.channel = Channels.newChannel(out);
+    }
+
+    public static void main(String[] args) {
+        Renderer.Format format = Renderer.Format.COMPACT;
+        Engine engine = Engine.ARENA;
+        Topology topology = Topology.CLASSIC;
+        int threads = Runtime.getRuntime().availableProcessors();
+        List<String> files = new ArrayList<String>();
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String a = args[i];
+                if (a.equals("-f") || a.equals("--format"))
+                    format = Renderer.Format.valueOf(value(args, ++i).toUpperCase());
+                else if (a.equals("-e") || a.equals("--engine"))
+                    engine = Engine.valueOf(value(args, ++i).toUpperCase());
+                else if (a.equals("-v") || a.equals("--variant"))
+                    topology = Variant.parse(value(args, ++i)).compile();
+                else if (a.equals("-t") || a.equals("--threads"))
+                    threads = Integer.parseInt(value(args, ++i));
+                else if (a.equals("-h") || a.equals("--help"))
+                    usage(0);
+                else if (a.startsWith("-") && a.length() > 1)
+                    throw new IllegalArgumentException("Unknown option " + a);
+                else
+                    files.add(a);
+            }
+            if (threads < 1)
+                throw new IllegalArgumentException("threads must be at least 1");
+            if (engine == Engine.NORVIG && !topology.isClassic())
+                throw new IllegalArgumentException("The norvig engine only solves classic puzzles");
+        }
+        catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            usage(2);
+        }
+        if (files.isEmpty())
+            files.add("-");
+
+        Cli cli = new Cli(format, engine, topology, threads, System.out);
+        try {
+            for (String f: files) {
+                if (f.equals("-")) {
+                    cli.read(System.in);
+                }
+                else {
+                    try (InputStream in = new FileInputStream(f)) {
+                        cli.read(in);
+                    }
+                }
+            }
+            cli.finish();
+        }
+        catch (IOException e) {
+            System.err.println(e.getMessage());
+            try {
+                cli.finish();       // still answer the puzzles read before the failure
+            }
+            catch (IOException f) {
+                System.err.println(f.getMessage());
+            }
+            System.exit(2);
+        }
+        System.exit(cli.unsolved == 0 ? 0 : 1);
+    }
+
+    private static String value(String[] args, int i) {
+        if (i >= args.length)
+            throw new IllegalArgumentException("Missing value for " + args[i - 1]);
+        return args[i];
+    }
+
+    private static void usage(int status) {
+        System.err.println("usage: sudoku.Cli [-f compact|grid|candidates] [-t threads] [-e arena|norvig]\n"
+                + "                 [-v classic|x|windoku|jigsaw:LAYOUT] [file ...]");
+        System.exit(status);
+    }
+
+    /*
+     * Collect puzzles from in, solving and writing each full chunk, and the
+     * puzzles read so far whenever in has nothing more ready.  A puzzle
+     * left incomplete at the end of in is dropped, so it cannot shift the
+     * puzzles of the next input.
+     */
+    void read(InputStream in) throws IOException {
+        byte[] buf = new byte[1 << 16];
+        boolean comment = false;
+        while (true) {
+            if (count > 0 && in.available() == 0) {
+                flush();            // don't sit on answers while the producer is slow
+                out.flush();
+            }
+            int n = in.read(buf);
+            if (n == -1)
+                break;
+            for (int i = 0; i < n; i++) {
+                byte c = buf[i];
+                if (c == '\n') {
+                    comment = false;
+                }
+                else if (c == '#') {
+                    comment = true;
+                }
+                else if (!comment && (c == '.' || (c >= '0' && c <= '9'))) {
+                    puzzles.put(count * CELLS + squares, c);
+                    if (++squares == CELLS) {
+                        squares = 0;
+                        if (++count == CHUNK)
+                            flush();
+                    }
+                }
+            }
+        }
+        if (squares != 0)
+            System.err.println("Ignoring " + squares + " squares of an incomplete puzzle");
+        squares = 0;
+    }
+
+    /* Solve whatever is left and release the workers. */
+    void finish() throws IOException {
+        flush();
+        out.flush();
+        if (null != batch)
+            batch.close();
+        if (null != pool)
+            pool.shutdownNow();
+    }
+
+    private void flush() throws IOException {
+        if (count == 0)
+            return;
+
+        int solved = (engine == Engine.ARENA) ? solveArena() : solveNorvig();
+        unsolved += count - solved;
+
+        for (int i = 0; i < count; i++) {
+            renderer.digits(solutions, i * CELLS);
+            if (renderer.length() >= 1 << 16)
+                renderer.writeTo(channel);
+        }
+        renderer.writeTo(channel);
+
+        // carry over the squares of a puzzle still being read
+        for (int k = 0; k < squares; k++)
+            puzzles.put(k, puzzles.get(count * CELLS + k));
+        count = 0;
+    }
+
+    private int solveArena() {
+        if (null == batch)
+            batch = new BatchSolver(threads, topology);
+        return batch.solve(puzzles, solutions, count);
+    }
+
+    private int solveNorvig() throws IOException {
+        if (null == pool)
+            pool = Executors.newFixedThreadPool(threads, new BatchSolver.DaemonFactory());
+
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>(count);
+        for (int i = 0; i < count; i++)
+            results.add(pool.submit(new NorvigTask(i * CELLS)));
+
+        int solved = 0;
+        try {
+            for (Future<Boolean> f: results) {
+                if (f.get())
+                    solved++;
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        }
+        catch (ExecutionException e) {
+            throw new IOException("Solver failed", e.getCause());
+        }
+        return solved;
+    }
+
+    /* One puzzle through Solver.solve; '0' becomes '.' since parseGrid keeps zeros. */
+    private final class NorvigTask implements Callable<Boolean> {
+        private final int offset;
+
+        NorvigTask(int offset) {
+            this.offset = offset;
+        }
+
+        @Override
+        public Boolean call() {
+            String p = BatchSolver.decode(puzzles, offset).replace('0', '.');
+            int[] grid = Validator.digits(Solver.solve(p));
+            boolean ok = Validator.isSolution(Validator.digits(p), grid);
+            for (int s = 0; s < CELLS; s++)
+                solutions.put(offset + s, (byte) (ok ? '0' + grid[s] : '.'));
+            return ok;
+        }
+    }
+}
@@ -0,0 +1,4 @@
+package sudoku;
+
+/* The solver implementations: Arena's bitmask search or Norvig's Solver. */
+public enum Engine { ARENA, NORVIG }
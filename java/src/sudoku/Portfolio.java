@@ -0,0 +1,294 @@
+package sudoku;
+
+import static sudoku.Topology.CELLS;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ *  Portfolio solver
+ *
+ *  Races several solver strategies on the same puzzle, one thread each, and
+ *  returns the first solution found.  The moment one strategy wins the rest
+ *  are told to stop: Arena strategies through Arena.stopOn, Norvig's Solver
+ *  by interrupting its thread.
+ *
+ *  No single branching order is best for every puzzle, so running a few
+ *  different ones trims the slow tail at the cost of extra cores.  Wins are
+ *  counted per strategy so the mix can be tuned from stats().
+ *
+ *  A portfolio may solve a Variant's compiled Topology instead of classic
+ *  puzzles, with Arena strategies only.
+ */
+public final class Portfolio implements AutoCloseable {
+
+    /* One way of solving: an engine and, for Arena, its heuristic and seed. */
+    public static final class Strategy {
+        public final String name;
+        public final Engine engine;
+        public final Arena.Heuristic heuristic;
+        public final long seed;
+
+        Strategy(String name, Engine engine, Arena.Heuristic heuristic, long seed) {
+            this.name = name;
+            this.engine = engine;
+            this.heuristic = heuristic;
+            this.seed = seed;
+        }
+
+        public static Strategy arena(String name, Arena.Heuristic heuristic, long seed) {
+            return new Strategy(name, Engine.ARENA, heuristic, seed);
+        }
+
+        public static Strategy norvig(String name) {
+            return new Strategy(name, Engine.NORVIG, null, 0);
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /* The winning solution and who found it. */
+    public static final class Result {
+        public final String strategy;
+        public final int[] solution;
+        public final long nanos;       // wall time from start of the race
+        final int index;               // of the strategy in strategies()
+
+        Result(String strategy, int index, int[] solution, long nanos) {
+            this.strategy = strategy;
+            this.index = index;
+            this.solution = solution;
+            this.nanos = nanos;
+        }
+    }
+
+    private final List<Strategy> strategies;
+    private final List<Arena> arenas = new ArrayList<Arena>();
+    private final AtomicLong[] wins;
+    private final AtomicLong[] winNanos;
+    private final ExecutorService pool;
+    private Race last;
+
+    public Portfolio(List<Strategy> strategies) {
+        this(strategies, Topology.CLASSIC);
+    }
+
+    public Portfolio(List<Strategy> strategies, Topology topology) {
+        if (strategies.isEmpty())
+            throw new IllegalArgumentException("A portfolio needs at least one strategy");
+        Set<String> names = new HashSet<String>();
+        for (Strategy st: strategies) {
+            if (!names.add(st.name))
+                throw new IllegalArgumentException("Two strategies are named " + st + "; wins are counted by name");
+            if (st.engine == Engine.NORVIG && !topology.isClassic())
+                throw new IllegalArgumentException("Strategy " + st + " only solves classic puzzles");
+        }
+
+        this.strategies = new ArrayList<Strategy>(strategies);
+        this.wins = new AtomicLong[strategies.size()];
+        this.winNanos = new AtomicLong[strategies.size()];
+        for (int i = 0; i < strategies.size(); i++) {
+            Strategy st = strategies.get(i);
+            arenas.add(st.engine == Engine.ARENA ? new Arena(topology, st.heuristic, st.seed) : null);
+            wins[i] = new AtomicLong();
+            winNanos[i] = new AtomicLong();
+        }
+        pool = Executors.newFixedThreadPool(strategies.size(), new BatchSolver.DaemonFactory());
+    }
+
+    /* Three different deterministic orders and one shuffled one. */
+    public static List<Strategy> defaults() {
+        return Arrays.asList(
+                Strategy.arena("fewest", Arena.Heuristic.FEWEST, 0),
+                Strategy.arena("fewest-last", Arena.Heuristic.FEWEST_LAST, 0),
+                Strategy.arena("first", Arena.Heuristic.FIRST, 0),
+                Strategy.arena("fewest-random", Arena.Heuristic.FEWEST, 0x9E3779B97F4A7C15L));
+    }
+
+    public List<Strategy> strategies() {
+        return strategies;
+    }
+
+    public Result solve(String puzzle) {
+        int[] p = Validator.digits(puzzle);
+        return (null == p) ? null : solve(p);
+    }
+
+    /*
+     * Race every strategy on puzzle (int[81], 0 for unfilled).  Returns the
+     * first solution, or null if the puzzle has none.  A strategy that
+     * throws ends the race and its exception is rethrown here.  Losers are
+     * stopped but not waited for; the next race waits for them before
+     * reusing their arenas.  One race at a time.
+     */
+    public synchronized Result solve(int[] puzzle) {
+        if (null == puzzle || puzzle.length != CELLS)
+            throw new IllegalArgumentException("A puzzle needs " + CELLS + " squares");
+        try {
+            if (null != last)
+                last.done.await();
+
+            Race race = new Race(strategies.size());
+            last = race;
+            List<Entrant> entrants = new ArrayList<Entrant>();
+            for (int i = 0; i < strategies.size(); i++) {
+                Arena arena = arenas.get(i);
+                if (null != arena)
+                    arena.stopOn(race.stop);
+                Entrant e = new Entrant(race, strategies.get(i), i, arena, puzzle);
+                entrants.add(e);
+                pool.execute(e);
+            }
+
+            race.over.await();
+            race.stop.set(true);
+            for (Entrant e: entrants) {
+                if (null == e.arena)
+                    e.interrupt();          // Solver.search checks for interrupts
+            }
+
+            Throwable failure = race.failure.get();
+            if (failure instanceof RuntimeException)
+                throw (RuntimeException) failure;
+            if (failure instanceof Error)
+                throw (Error) failure;
+
+            Result winner = race.winner.get();
+            if (null != winner) {
+                wins[winner.index].incrementAndGet();
+                winNanos[winner.index].addAndGet(winner.nanos);
+            }
+            return winner;
+        }
+        catch (InterruptedException e) {
+            if (null != last)
+                last.stop.set(true);
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /* Wins per strategy, in strategy order. */
+    public Map<String, Long> wins() {
+        Map<String, Long> m = new LinkedHashMap<String, Long>();
+        for (int i = 0; i < strategies.size(); i++)
+            m.put(strategies.get(i).name, wins[i].get());
+        return m;
+    }
+
+    /* One line per strategy: wins and mean winning time. */
+    public String stats() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < strategies.size(); i++) {
+            long w = wins[i].get();
+            sb.append(String.format("%-16s %8d wins %10.3f ms mean%n",
+                    strategies.get(i).name, w, w == 0 ? 0.0 : winNanos[i].get() / 1e6 / w));
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public void close() {
+        pool.shutdownNow();
+    }
+
+    /* Shared state of one race. */
+    private static final class Race {
+        final long start = System.nanoTime();
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicReference<Result> winner = new AtomicReference<Result>();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final AtomicInteger left;
+        final CountDownLatch over = new CountDownLatch(1);   // a winner, a failure, or no solution
+        final CountDownLatch done;                           // every entrant has returned
+
+        Race(int entrants) {
+            left = new AtomicInteger(entrants);
+            done = new CountDownLatch(entrants);
+        }
+    }
+
+    /* One strategy's run in the race. */
+    private static final class Entrant implements Runnable {
+        private final Race race;
+        private final Strategy strategy;
+        private final int index;
+        final Arena arena;
+        private final int[] puzzle;
+        private Thread runner;
+        private boolean finished;
+
+        Entrant(Race race, Strategy strategy, int index, Arena arena, int[] puzzle) {
+            this.race = race;
+            this.strategy = strategy;
+            this.index = index;
+            this.arena = arena;
+            this.puzzle = puzzle;
+        }
+
+        synchronized void interrupt() {
+            if (null != runner && !finished)
+                runner.interrupt();
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                runner = Thread.currentThread();
+            }
+            try {
+                int[] solution = race.stop.get() ? null : solve();
+                if (null != solution) {
+                    Result r = new Result(strategy.name, index, solution, System.nanoTime() - race.start);
+                    if (race.winner.compareAndSet(null, r)) {
+                        race.stop.set(true);
+                        race.over.countDown();
+                    }
+                }
+            }
+            catch (RuntimeException | Error e) {
+                race.failure.compareAndSet(null, e);
+                race.stop.set(true);
+                race.over.countDown();
+            }
+            finally {
+                synchronized (this) {
+                    finished = true;
+                    Thread.interrupted();   // don't leak a late interrupt into the pool
+                }
+                if (0 == race.left.decrementAndGet())
+                    race.over.countDown();
+                race.done.countDown();
+            }
+        }
+
+        private int[] solve() {
+            int[] solution;
+            if (null != arena) {
+                solution = new int[CELLS];
+                return arena.solve(puzzle, solution) ? solution : null;
+            }
+
+            StringBuilder sb = new StringBuilder(CELLS);
+            for (int d: puzzle)
+                sb.append(d == 0 ? '.' : (char) ('0' + d));
+            solution = Validator.digits(Solver.solve(sb.toString()));
+            return Validator.isSolution(puzzle, solution) ? solution : null;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package sudoku;
+
+import static sudoku.Topology.CELLS;
+import static sudoku.Topology.SIZE;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *  Board renderer
+ *
+ *  Appends boards to one reusable StringBuilder in a single pass per board,
+ *  so a batch of boards can be handed to an Appendable or a channel in one
+ *  write instead of a print call per square.  Formats:
+ *
+ *      COMPACT      81 characters and a newline, '.' for unsolved squares
+ *      GRID         9 lines with box separators, then a blank line
+ *      CANDIDATES   every square's possible values centered in equal width
+ *                   columns, the layout Solver.display prints, then a blank line
+ *
+ *  Boards may be Solver maps, int[81] candidate masks (bit d-1 for digit d,
+ *  as in Arena) or 81 bytes of a ByteBuffer (as in BatchSolver).  A Renderer
+ *  is not thread safe.
+ */
+public final class Renderer {
+
+    public enum Format { COMPACT, GRID, CANDIDATES }
+
+    private final Format format;
+    private final StringBuilder sb;
+    private final int[] masks = new int[CELLS];
+    private ByteBuffer bytes;
+
+    public Renderer(Format format) {
+        this.format = format;
+        this.sb = new StringBuilder(format == Format.COMPACT ? 4096 : 16384);
+    }
+
+    public Format format() {
+        return format;
+    }
+
+    /* Everything rendered since the last write or clear. */
+    public CharSequence buffer() {
+        return sb;
+    }
+
+    public int length() {
+        return sb.length();
+    }
+
+    public void clear() {
+        sb.setLength(0);
+    }
+
+    /* Render a Solver board; values other than 1-9 (e.g. parseGrid's ".") are dropped. */
+    public Renderer board(Map<String, List<String>> board) {
+        for (int s = 0; s < CELLS; s++) {
+            int m = 0;
+            for (String v: board.get(Solver.squares.get(s))) {
+                char c = v.charAt(0);
+                if (c >= '1' && c <= '9')
+                    m |= 1 << (c - '1');
+            }
+            masks[s] = m;
+        }
+        return render(masks);
+    }
+
+    /* Render 81 bytes of '1'-'9' (anything else is unsolved) starting at buf[offset]. */
+    public Renderer digits(ByteBuffer buf, int offset) {
+        for (int s = 0; s < CELLS; s++) {
+            int c = buf.get(offset + s) - '1';
+            masks[s] = (c >= 0 && c < SIZE) ? 1 << c : 0;
+        }
+        return render(masks);
+    }
+
+    /* Render int[81] digits, 0 for unsolved. */
+    public Renderer digits(int[] grid) {
+        for (int s = 0; s < CELLS; s++) {
+            int c = grid[s] - 1;
+            masks[s] = (c >= 0 && c < SIZE) ? 1 << c : 0;
+        }
+        return render(masks);
+    }
+
+    /* Render int[81] candidate masks. */
+    public Renderer render(int[] masks) {
+        switch (format) {
+            case COMPACT:
+                for (int s = 0; s < CELLS; s++)
+                    sb.append(single(masks[s]));
+                sb.append('\n');
+                break;
+            case GRID:
+                grid(masks);
+                break;
+            default:
+                candidates(masks);
+        }
+        return this;
+    }
+
+    /* Append everything rendered so far to out and clear. */
+    public void writeTo(Appendable out) throws IOException {
+        out.append(sb);
+        sb.setLength(0);
+    }
+
+    /* Write everything rendered so far to ch as ASCII and clear. */
+    public void writeTo(WritableByteChannel ch) throws IOException {
+        int n = sb.length();
+        if (null == bytes || bytes.capacity() < n)
+            bytes = ByteBuffer.allocateDirect(Math.max(n, 2 * sb.capacity()));
+        bytes.clear();
+        for (int i = 0; i < n; i++)
+            bytes.put((byte) sb.charAt(i));
+        bytes.flip();
+        while (bytes.hasRemaining())
+            ch.write(bytes);
+        sb.setLength(0);
+    }
+
+    private static char single(int m) {
+        return (m != 0 && (m & (m - 1)) == 0) ? (char) ('1' + Integer.numberOfTrailingZeros(m)) : '.';
+    }
+
+    private void grid(int[] masks) {
+        for (int r = 0; r < SIZE; r++) {
+            for (int c = 0; c < SIZE; c++) {
+                sb.append(single(masks[r * SIZE + c]));
+                sb.append(c == 2 || c == 5 ? " | " : c == 8 ? "\n" : " ");
+            }
+            if (r == 2 || r == 5)
+                sb.append("------+-------+------\n");
+        }
+        sb.append('\n');
+    }
+
+    private void candidates(int[] masks) {
+        int longest = 1;
+        for (int s = 0; s < CELLS; s++)
+            longest = Math.max(longest, Integer.bitCount(masks[s]));
+        int width = 1 + longest;
+
+        for (int r = 0; r < SIZE; r++) {
+            sb.append(' ');
+            for (int c = 0; c < SIZE; c++) {
+                int m = masks[r * SIZE + c];
+                int n = Math.max(1, Integer.bitCount(m));
+                int left = (width - n) / 2;
+                pad(' ', left);
+                if (m == 0) {
+                    sb.append('.');
+                }
+                else {
+                    for (int d = 0; d < SIZE; d++) {
+                        if ((m & (1 << d)) != 0)
+                            sb.append((char) ('1' + d));
+                    }
+                }
+                pad(' ', width - n - left);
+                if (c == 2 || c == 5)
+                    sb.append("| ");
+            }
+            sb.append('\n');
+            if (r == 2 || r == 5) {
+                for (int b = 0; b < 3; b++) {
+                    if (b > 0)
+                        sb.append('+');
+                    pad('-', width * 3 + 1);
+                }
+                sb.append('\n');
+            }
+        }
+        sb.append('\n');
+    }
+
+    private void pad(char c, int n) {
+        for (int i = 0; i < n; i++)
+            sb.append(c);
+    }
+}
@@ -0,0 +1,378 @@
+package sudoku;
+
+import static sudoku.Topology.CELLS;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *  Cost predicting batch scheduler
+ *
+ *  Like BatchSolver, solves puzzles packed 81 bytes apiece in a ByteBuffer,
+ *  but plans the batch so that one hard puzzle at the end does not leave
+ *  every other core idle:
+ *
+ *   1. Every puzzle is propagated (Arena.propagate, the createBoard step) and
+ *      its search cost predicted from the candidate entropy that remains,
+ *      i.e. the sum of log2(possibilities) over the open squares.  The
+ *      propagated boards are kept off heap so search picks up from there.
+ *   2. Puzzles are handed out hardest first from a shared cursor, so the long
+ *      jobs start early and the cheap ones fill in the gaps at the end.
+ *   3. Puzzles predicted at or above splitBits are split on the square
+ *      with the fewest possibilities into one fork/join task per digit.
+ *      Each branch propagates its digit and, while the entropy left is
+ *      still at or above splitBits, splits again, down to about
+ *      LEAVES_PER_THREAD leaves per worker.  Idle workers steal branches;
+ *      the first to find a solution stops the rest.
+ *
+ *  Each solve returns a Report of predicted cost against the actual time and
+ *  search nodes per puzzle, so the estimator can be checked.
+ */
+public final class Scheduler implements AutoCloseable {
+
+    static final int ESTIMATE_CHUNK = 256;
+    static final int LEAVES_PER_THREAD = 8;
+    // Typical hard puzzles are left with 80-120 bits after propagation;
+    // the pathological ones that search for seconds sit well above that.
+    public static final float DEFAULT_SPLIT_BITS = 140f;
+
+    private final ForkJoinPool pool;
+    private final float splitBits;
+    private final ThreadLocal<Arena> arenas;
+    private ShortBuffer state;            // propagated board of every puzzle
+
+    public Scheduler(int threads) {
+        this(threads, DEFAULT_SPLIT_BITS, Topology.CLASSIC);
+    }
+
+    public Scheduler(int threads, float splitBits, Topology topology) {
+        if (threads < 1)
+            throw new IllegalArgumentException("threads must be at least 1");
+
+        this.pool = new ForkJoinPool(threads);
+        this.splitBits = splitBits;
+        this.arenas = ThreadLocal.withInitial(() -> new Arena(topology));
+    }
+
+    public int threads() {
+        return pool.getParallelism();
+    }
+
+    /* Predicted against actual cost for every puzzle of one batch. */
+    public static final class Report {
+        public final int count;
+        public final int threads;
+        public final float[] predicted;   // candidate entropy in bits, -1 for a contradiction
+        public final long[] nanos;        // time spent solving each puzzle
+        public final long[] nodes;        // search branches tried
+        public final boolean[] split;     // solved as parallel branches
+        public final int[] depth;         // levels of branches, for split puzzles
+        public int solved;
+        public long estimateNanos;        // wall time of the prediction pass
+        public long makespan;             // wall time of the whole batch
+
+        Report(int count, int threads) {
+            this.count = count;
+            this.threads = threads;
+            this.predicted = new float[count];
+            this.nanos = new long[count];
+            this.nodes = new long[count];
+            this.split = new boolean[count];
+            this.depth = new int[count];
+        }
+
+        /* Sum of per-puzzle solve time; split puzzles count their wall time. */
+        public long solveNanos() {
+            long t = 0;
+            for (long n: nanos)
+                t += n;
+            return t;
+        }
+
+        /* Spearman rank correlation of predicted cost with actual time. */
+        public double correlation() {
+            if (count < 2)
+                return 0;
+            double[] rp = ranks(predicted, null);
+            double[] ra = ranks(null, nanos);
+            double mean = (count - 1) / 2.0, cov = 0, vp = 0, va = 0;
+            for (int i = 0; i < count; i++) {
+                cov += (rp[i] - mean) * (ra[i] - mean);
+                vp += (rp[i] - mean) * (rp[i] - mean);
+                va += (ra[i] - mean) * (ra[i] - mean);
+            }
+            return (vp == 0 || va == 0) ? 0 : cov / Math.sqrt(vp * va);
+        }
+
+        /* Rank of each value, ties sharing their mean rank. */
+        private double[] ranks(float[] f, long[] l) {
+            Integer[] idx = new Integer[count];
+            for (int i = 0; i < count; i++)
+                idx[i] = i;
+            Arrays.sort(idx, (a, b) -> (null != f) ? Float.compare(f[a], f[b]) : Long.compare(l[a], l[b]));
+
+            double[] r = new double[count];
+            for (int i = 0; i < count; ) {
+                int j = i;
+                while (j + 1 < count && ((null != f) ? f[idx[j + 1]] == f[idx[i]] : l[idx[j + 1]] == l[idx[i]]))
+                    j++;
+                for (int k = i; k <= j; k++)
+                    r[idx[k]] = (i + j) / 2.0;
+                i = j + 1;
+            }
+            return r;
+        }
+
+        @Override
+        public String toString() {
+            int splits = 0;
+            for (boolean b: split)
+                if (b) splits++;
+            return String.format("%d puzzles, %d solved, %d split; makespan %.3f ms, "
+                    + "solve time / %d threads %.3f ms, estimate %.3f ms; rank correlation %.3f",
+                    count, solved, splits, makespan / 1e6, threads, solveNanos() / 1e6 / threads,
+                    estimateNanos / 1e6, correlation());
+        }
+    }
+
+    /*
+     * Solve count puzzles from in and write their solutions to out at the
+     * same offsets; unsolvable puzzles get a row of '.'s.  One batch at a time.
+     */
+    public synchronized Report solve(ByteBuffer in, ByteBuffer out, int count) {
+        if (in.capacity() < count * CELLS || out.capacity() < count * CELLS)
+            throw new IllegalArgumentException("Buffers too small for " + count + " puzzles");
+
+        if (null == state || state.capacity() < count * CELLS)
+            state = ByteBuffer.allocateDirect(count * CELLS * 2).order(ByteOrder.nativeOrder()).asShortBuffer();
+
+        Report report = new Report(count, threads());
+        long start = System.nanoTime();
+        pool.invoke(new Estimate(in, report.predicted, 0, count));
+        report.estimateNanos = System.nanoTime() - start;
+
+        // Hardest first: sort (entropy bits, index) pairs packed into longs.
+        // Entropy is never below -1, so adding 1 keeps the float bits ordered.
+        long[] order = new long[count];
+        for (int i = 0; i < count; i++)
+            order[i] = ((long) Float.floatToIntBits(report.predicted[i] + 1f) << 32) | i;
+        Arrays.sort(order);
+
+        Dispatch dispatch = new Dispatch(in, out, report, order);
+        ForkJoinTask<?>[] claimers = new ForkJoinTask<?>[threads()];
+        for (int i = 0; i < claimers.length; i++)
+            claimers[i] = new Claimer(dispatch);
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(claimers);
+            }
+        });
+
+        report.solved = dispatch.solved.get();
+        report.makespan = System.nanoTime() - start;
+        return report;
+    }
+
+    @Override
+    public void close() {
+        pool.shutdownNow();
+    }
+
+    /* Propagate a range of puzzles and record their entropy. */
+    private final class Estimate extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final ByteBuffer in;
+        private final float[] predicted;
+        private final int from, to;
+
+        Estimate(ByteBuffer in, float[] predicted, int from, int to) {
+            this.in = in;
+            this.predicted = predicted;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > ESTIMATE_CHUNK) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new Estimate(in, predicted, from, mid), new Estimate(in, predicted, mid, to));
+                return;
+            }
+            Arena arena = arenas.get();
+            for (int i = from; i < to; i++) {
+                predicted[i] = arena.propagate(in, i * CELLS);
+                arena.candidates(state, i * CELLS);
+            }
+        }
+    }
+
+    /* State shared by the claimers of one batch. */
+    private static final class Dispatch {
+        final ByteBuffer in, out;
+        final Report report;
+        final long[] order;              // ascending predicted cost
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger solved = new AtomicInteger();
+
+        Dispatch(ByteBuffer in, ByteBuffer out, Report report, long[] order) {
+            this.in = in;
+            this.out = out;
+            this.report = report;
+            this.order = order;
+        }
+    }
+
+    /* Takes the hardest unclaimed puzzle until none are left. */
+    private final class Claimer extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Dispatch d;
+
+        Claimer(Dispatch d) {
+            this.d = d;
+        }
+
+        @Override
+        protected void compute() {
+            int n;
+            while ((n = d.next.getAndIncrement()) < d.order.length) {
+                int i = (int) d.order[d.order.length - 1 - n];
+                int offset = i * CELLS;
+                long start = System.nanoTime();
+                float predicted = d.report.predicted[i];
+                boolean ok;
+                if (predicted < 0) {
+                    ok = false;
+                    for (int s = 0; s < CELLS; s++)
+                        d.out.put(offset + s, (byte) '.');
+                }
+                else if (predicted > 0 && predicted >= splitBits) {
+                    d.report.split[i] = true;
+                    ok = split(i);
+                }
+                else {
+                    Arena arena = arenas.get();
+                    ok = arena.solve(state, offset, d.out, offset);
+                    d.report.nodes[i] = arena.nodes();
+                }
+                d.report.nanos[i] = System.nanoTime() - start;
+                if (ok)
+                    d.solved.incrementAndGet();
+            }
+        }
+
+        /* Search the puzzle as a tree of parallel branches. */
+        private boolean split(int i) {
+            int offset = i * CELLS;
+            int[] masks = new int[CELLS];
+            for (int s = 0; s < CELLS; s++)
+                masks[s] = state.get(offset + s);
+
+            Race race = new Race();
+            new Branch(race, masks, -1, 0, 0, threads() * LEAVES_PER_THREAD).invoke();
+
+            d.report.nodes[i] = race.nodes.get();
+            d.report.depth[i] = race.depth.get();
+            int[] solution = race.solution;
+            for (int s = 0; s < CELLS; s++)
+                d.out.put(offset + s, (byte) (null != solution ? '0' + solution[s] : '.'));
+            return null != solution;
+        }
+    }
+
+    /* The branches of one split puzzle. */
+    private static final class Race {
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicLong nodes = new AtomicLong();
+        final AtomicInteger depth = new AtomicInteger();
+        volatile int[] solution;
+    }
+
+    /*
+     * One digit of a split puzzle's branch square (square -1 for the whole
+     * puzzle).  Splits again while the entropy left is at or above
+     * splitBits and it may still have more than one leaf, else searches.
+     */
+    private final class Branch extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Race race;
+        private final int[] masks;
+        private final int square, digit;
+        private final int level, leaves;
+
+        Branch(Race race, int[] masks, int square, int digit, int level, int leaves) {
+            this.race = race;
+            this.masks = masks;
+            this.square = square;
+            this.digit = digit;
+            this.level = level;
+            this.leaves = leaves;
+        }
+
+        @Override
+        protected void compute() {
+            if (race.stop.get())
+                return;
+
+            Arena arena = arenas.get();
+            boolean loaded = false;
+            if (leaves > 1) {
+                float bits = arena.propagate(masks, square, digit);
+                if (bits < 0)
+                    return;
+                if (bits > 0 && bits >= splitBits) {
+                    int[] board = new int[CELLS];
+                    arena.candidates(board);
+                    fork(board);
+                    return;
+                }
+                loaded = true;              // search on from the propagated board
+            }
+
+            int[] solution = new int[CELLS];
+            arena.stopOn(race.stop);
+            try {
+                boolean ok = loaded ? arena.search(solution) : arena.solve(masks, square, digit, solution);
+                if (ok && race.stop.compareAndSet(false, true))
+                    race.solution = solution;
+            }
+            finally {
+                arena.stopOn(null);
+                race.nodes.addAndGet(arena.nodes());
+            }
+        }
+
+        /* One branch per digit of the square with the fewest possibilities. */
+        private void fork(int[] board) {
+            int at = -1, fewest = 10;
+            for (int s = 0; s < CELLS; s++) {
+                int c = Integer.bitCount(board[s]);
+                if (c > 1 && c < fewest) {
+                    at = s;
+                    fewest = c;
+                }
+            }
+
+            race.depth.accumulateAndGet(level + 1, Math::max);
+            Branch[] branches = new Branch[fewest];
+            int b = 0;
+            for (int m = board[at]; m != 0; m &= m - 1) {
+                int d = 1 + Integer.numberOfTrailingZeros(m);
+                branches[b++] = new Branch(race, board, at, d, level + 1, leaves / fewest);
+            }
+            invokeAll(branches);
+        }
+    }
+}
@@ -0,0 +1,767 @@
+package sudoku;
+
+import static sudoku.Topology.CELLS;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+/**
+ *  Persistent solved-puzzle store
+ *
+ *  A directory holding two files:
+ *
+ *      data    append-only log of fixed size records
+ *              (mark, puzzle[81], solution[81], nodes, nanos, crc32)
+ *      index   memory-mapped open addressing hash table of
+ *              (puzzle fingerprint, record offset) slots, linear probing
+ *
+ *  A lookup hashes the puzzle, probes the mapped index and reads the one
+ *  record it points at through a read-only mapping of the log, so it costs
+ *  a few microseconds.  Every record read is checked against its crc and
+ *  the puzzle itself, so a stale or damaged index can cause a miss but
+ *  never a wrong answer.  The log mapping limits a store to 2 GB of log,
+ *  about 11 million puzzles; put() fails with an IOException past that.
+ *  Every call but close() fails with an IllegalStateException once the
+ *  store is closed.
+ *
+ *  Crash safety: records are appended before the index points at them and
+ *  the index header remembers how much of the log it covers.  On open, a
+ *  torn record at the end of the log is truncated and any records past the
+ *  covered length are indexed again.  If the index is missing, damaged or
+ *  belongs to another generation of the log (see compact()) it is rebuilt
+ *  from the log.
+ *
+ *  Interrupting a thread in FileChannel I/O closes the channel for every
+ *  thread, and Portfolio interrupts Solver threads on purpose.  So store
+ *  calls hold the caller's interrupt status back while they do I/O, and a
+ *  log channel closed by an interrupt anyway is opened (and locked) again.
+ *
+ *  One process at a time may open a store for writing (a file lock on the
+ *  log enforces it).  Any number of processes may open it read-only; they
+ *  map the same index file, so they see new records as they are indexed.
+ *  When the writer grows or compacts the index it replaces the file and
+ *  marks the old one retired, and readers remap on their next miss.
+ */
+public final class SolutionStore implements AutoCloseable {
+
+    static final int DATA_MAGIC = 0x53444b44;       // "SDKD"
+    static final int INDEX_MAGIC = 0x53444b49;      // "SDKI"
+    static final int RECORD_MARK = 0x53524543;      // "SREC"
+    static final int VERSION = 1;
+
+    static final int DATA_HEADER = 16;              // magic, version, generation
+    static final int RECORD = 4 + CELLS + CELLS + 8 + 8 + 4;
+
+    static final int INDEX_HEADER = 64;
+    static final int H_MAGIC = 0, H_VERSION = 4, H_CAPACITY = 8, H_COUNT = 12;
+    static final int H_GENERATION = 16, H_LENGTH = 24, H_RETIRED = 32;
+    static final int SLOT = 16;                     // fingerprint, record offset
+    static final int MIN_CAPACITY = 1 << 12;
+    static final long MAX_LENGTH = Integer.MAX_VALUE;  // largest log one mapping covers
+
+    /* A stored solution and the stats recorded with it. */
+    public static final class Record {
+        public final String puzzle;
+        public final String solution;
+        public final long nodes;
+        public final long nanos;
+
+        Record(String puzzle, String solution, long nodes, long nanos) {
+            this.puzzle = puzzle;
+            this.solution = solution;
+            this.nodes = nodes;
+            this.nanos = nanos;
+        }
+    }
+
+    private final Path dir;
+    private final boolean readOnly;
+    private final Random random = new Random();
+
+    private volatile FileChannel data;
+    private volatile MappedByteBuffer log;          // read-only view of data, remapped as it grows
+    private volatile boolean closed;
+    private FileLock lock;
+    private long generation;
+    private long length;                            // end of the last good record
+
+    private FileChannel indexChannel;
+    private volatile MappedByteBuffer index;
+
+    private SolutionStore(Path dir, boolean readOnly) {
+        this.dir = dir;
+        this.readOnly = readOnly;
+    }
+
+    /* Open (creating if needed) a store for reading and writing. */
+    public static SolutionStore open(Path dir) throws IOException {
+        SolutionStore st = new SolutionStore(dir, false);
+        try {
+            st.openWriter();
+        }
+        catch (IOException | RuntimeException e) {
+            st.close();
+            throw e;
+        }
+        return st;
+    }
+
+    /* Open an existing store for lookups only; safe alongside a writer. */
+    public static SolutionStore openReadOnly(Path dir) throws IOException {
+        SolutionStore st = new SolutionStore(dir, true);
+        try {
+            st.openReader();
+        }
+        catch (IOException | RuntimeException e) {
+            st.close();
+            throw e;
+        }
+        return st;
+    }
+
+    public boolean readOnly() {
+        return readOnly;
+    }
+
+    /* Number of distinct puzzles indexed. */
+    public int size() {
+        return index().getInt(H_COUNT);
+    }
+
+    /* The mapped index, or IllegalStateException once the store is closed. */
+    private MappedByteBuffer index() {
+        MappedByteBuffer m = index;
+        if (closed || null == m)
+            throw new IllegalStateException("Store " + dir + " is closed");
+        return m;
+    }
+
+    /*
+     * Normalize a puzzle to 81 bytes of '1'-'9' and '.' the way Puzzles.java
+     * reads them ('0' is also unfilled); null if it is not 81 squares.
+     */
+    static byte[] normalize(String puzzle) {
+        if (null == puzzle)
+            return null;
+
+        byte[] p = new byte[CELLS];
+        int n = 0;
+        for (int i = 0; i < puzzle.length(); i++) {
+            char c = puzzle.charAt(i);
+            if (c == '.' || (c >= '0' && c <= '9')) {
+                if (n == CELLS)
+                    return null;
+                p[n++] = (byte) ((c == '0') ? '.' : c);
+            }
+        }
+        return (n == CELLS) ? p : null;
+    }
+
+    /* 64-bit FNV-1a of the normalized puzzle with a final mix; never 0. */
+    static long fingerprint(byte[] p) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b: p) {
+            h ^= b;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return (h == 0) ? 1 : h;
+    }
+
+    public static long fingerprint(String puzzle) {
+        byte[] p = normalize(puzzle);
+        return (null == p) ? 0 : fingerprint(p);
+    }
+
+    /* The stored solution of puzzle as 81 digits, or null. */
+    public String get(String puzzle) {
+        Record r = record(puzzle);
+        return (null == r) ? null : r.solution;
+    }
+
+    /* The stored record of puzzle, or null. */
+    public Record record(String puzzle) {
+        byte[] p = normalize(puzzle);
+        if (null == p)
+            return null;
+
+        long fp = fingerprint(p);
+        ByteBuffer rec = ByteBuffer.allocate(RECORD);
+        try {
+            return io(() -> {
+                MappedByteBuffer m = index();
+                long offset = find(m, fp, p, rec);
+                if (offset < 0 && readOnly && m.getInt(H_RETIRED) != 0) {
+                    remap();
+                    offset = find(index(), fp, p, rec);
+                }
+                return (offset < 0) ? null : toRecord(rec);
+            });
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public boolean put(String puzzle, String solution) {
+        return put(puzzle, solution, 0, 0);
+    }
+
+    /*
+     * Store solution (81 digits) for puzzle.  An existing entry is only
+     * replaced when new stats (nodes or nanos) are given or its solution
+     * differs, which repairs a bad answer from elsewhere.  Returns true if
+     * a record was written.  Readers in other processes trust what is
+     * stored, so a solution that does not solve puzzle under the classic
+     * rules is refused.
+     */
+    public synchronized boolean put(String puzzle, String solution, long nodes, long nanos) {
+        index();
+        if (readOnly)
+            throw new IllegalStateException("Store " + dir + " is open read-only");
+        byte[] p = normalize(puzzle);
+        byte[] s = normalize(solution);
+        if (null == p || null == s)
+            throw new IllegalArgumentException("Puzzle and solution must have " + CELLS + " squares");
+        if (!Validator.isSolution(digits(p), digits(s)))
+            throw new IllegalArgumentException("Not a solution of " + new String(p, StandardCharsets.US_ASCII));
+
+        long fp = fingerprint(p);
+        ByteBuffer rec = ByteBuffer.allocate(RECORD);
+        try {
+            return io(() -> {
+                long existing = find(index, fp, p, rec);
+                if (existing >= 0 && nodes == 0 && nanos == 0 && matches(rec, 4 + CELLS, s))
+                    return false;
+
+                rec.clear();
+                rec.putInt(RECORD_MARK).put(p).put(s).putLong(nodes).putLong(nanos);
+                rec.putInt(crc(rec.array()));
+                rec.flip();
+                long offset = length;
+                if (offset + RECORD > MAX_LENGTH)
+                    throw new IOException("Store " + dir + " is full: its log cannot grow past " + MAX_LENGTH + " bytes");
+                FileChannel ch = channel();
+                while (rec.hasRemaining())
+                    ch.write(rec, offset + rec.position());
+                length = offset + RECORD;
+
+                insert(fp, p, offset, existing);
+                index.putLong(H_LENGTH, length);
+                return true;
+            });
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /* Flush appended records and the index to disk. */
+    public synchronized void sync() throws IOException {
+        index();
+        if (readOnly)
+            return;
+        io(() -> {
+            channel().force(true);
+            index.force();
+            return null;
+        });
+    }
+
+    /*
+     * Rewrite the log with only the records the index points at (dropping
+     * replaced stats and damaged records) under a new generation, then
+     * rebuild the index.  Readers keep working and remap on their next miss.
+     */
+    public synchronized void compact() throws IOException {
+        index();
+        if (readOnly)
+            throw new IllegalStateException("Store " + dir + " is open read-only");
+        io(() -> {
+            compactLog();
+            return null;
+        });
+    }
+
+    private void compactLog() throws IOException {
+        Path tmp = dir.resolve("data.compact");
+        long gen = newGeneration();
+        FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileLock outLock;
+        try {
+            // Lock before the move: the lock stays with the file, so there
+            // is no moment when the new log is unlocked.
+            outLock = tryLock(out);
+            if (null == outLock)
+                throw new IllegalStateException("Could not lock " + tmp + " for compaction");
+
+            writeDataHeader(out, gen);
+            long pos = DATA_HEADER;
+            ByteBuffer rec = ByteBuffer.allocate(RECORD);
+            int capacity = index.getInt(H_CAPACITY);
+            for (int i = 0; i < capacity; i++) {
+                long offset = index.getLong(INDEX_HEADER + i * SLOT + 8);
+                if (0 == index.getLong(INDEX_HEADER + i * SLOT) || !readRecord(offset, rec))
+                    continue;
+                rec.clear();
+                while (rec.hasRemaining())
+                    pos += out.write(rec, pos);
+            }
+            out.force(true);
+            Files.move(tmp, dir.resolve("data"), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (IOException | RuntimeException e) {
+            out.close();
+            throw e;
+        }
+
+        // The compacted channel, already locked, is the log from now on.
+        FileChannel oldData = data;
+        data = out;
+        lock = outLock;
+        log = null;
+        generation = gen;
+        length = out.size();
+        oldData.close();                    // also drops the old file's lock
+
+        rebuildIndex(index.getInt(H_CAPACITY));
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        IOException failure = null;
+        if (null != index && !readOnly)
+            index.force();
+        try {
+            if (null != indexChannel)
+                indexChannel.close();
+        }
+        catch (IOException e) {
+            failure = e;
+        }
+        try {
+            if (null != lock && lock.isValid())
+                lock.release();
+        }
+        catch (IOException e) {
+            failure = (null != failure) ? failure : e;
+        }
+        try {
+            if (null != data)
+                data.close();
+        }
+        catch (IOException e) {
+            failure = (null != failure) ? failure : e;
+        }
+        index = null;
+        indexChannel = null;
+        lock = null;
+        data = null;
+        log = null;
+        if (null != failure)
+            throw new UncheckedIOException(failure);
+    }
+
+    /* Store work that does file I/O; see io(). */
+    private interface Io<T> {
+        T run() throws IOException;
+    }
+
+    /*
+     * Run work with the caller's interrupt status held back, so it cannot
+     * close the log channel, and restore it after.  If an interrupt lands
+     * mid-call and closes the channel anyway, work runs once more on the
+     * channel that channel() reopens.
+     */
+    private <T> T io(Io<T> work) throws IOException {
+        boolean interrupted = Thread.interrupted();
+        try {
+            for (int attempt = 0; ; attempt++) {
+                try {
+                    return work.run();
+                }
+                catch (ClosedChannelException e) {
+                    interrupted |= Thread.interrupted();
+                    if (attempt > 0 || closed)
+                        throw e;
+                }
+            }
+        }
+        finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    /*
+     * The log channel, opened again if something other than close() closed
+     * it.  A writer takes its lock back too, and fails if another process
+     * got the lock in between.
+     */
+    private synchronized FileChannel channel() throws IOException {
+        FileChannel ch = data;
+        if (closed || null == ch)
+            throw new ClosedChannelException();
+        if (ch.isOpen())
+            return ch;
+
+        Path dp = dir.resolve("data");
+        if (readOnly) {
+            ch = FileChannel.open(dp, StandardOpenOption.READ);
+        }
+        else {
+            ch = FileChannel.open(dp, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            FileLock l = tryLock(ch);
+            if (null == l) {
+                ch.close();
+                throw new IllegalStateException("Store " + dir + " lost its writer lock");
+            }
+            lock = l;
+        }
+        data = ch;
+        log = null;
+        return ch;
+    }
+
+    /* A lock on all of ch, or null if another process or channel holds one. */
+    private static FileLock tryLock(FileChannel ch) throws IOException {
+        try {
+            return ch.tryLock();
+        }
+        catch (OverlappingFileLockException e) {
+            return null;
+        }
+    }
+
+    /* Map the log as it is now, unless the current mapping already covers it. */
+    private synchronized MappedByteBuffer mapLog() throws IOException {
+        FileChannel ch = channel();
+        long size = ch.size();
+        MappedByteBuffer m = log;
+        if (null == m || m.capacity() != size) {
+            m = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            log = m;
+        }
+        return m;
+    }
+
+    private void openWriter() throws IOException {
+        Files.createDirectories(dir);
+        data = FileChannel.open(dir.resolve("data"), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        lock = tryLock(data);
+        if (null == lock)
+            throw new IllegalStateException("Store " + dir + " is already open for writing");
+
+        if (data.size() < DATA_HEADER) {
+            data.truncate(0);
+            writeDataHeader(data, newGeneration());
+        }
+        ByteBuffer h = ByteBuffer.allocate(DATA_HEADER);
+        readFully(data, h, 0);
+        if (h.getInt(0) != DATA_MAGIC || h.getInt(4) != VERSION)
+            throw new IOException(dir.resolve("data") + " is not a solution store");
+        generation = h.getLong(8);
+
+        // Drop a partial record left by a crash.
+        long size = data.size();
+        length = size - (size - DATA_HEADER) % RECORD;
+
+        Path ip = dir.resolve("index");
+        boolean usable = false;
+        if (Files.exists(ip) && Files.size(ip) >= INDEX_HEADER) {
+            mapIndex();
+            usable = indexIntact()
+                    && index.getInt(H_VERSION) == VERSION
+                    && index.getLong(H_GENERATION) == generation
+                    && index.getLong(H_LENGTH) <= length
+                    && index.getInt(H_RETIRED) == 0;
+        }
+
+        if (usable) {
+            length = replay(index.getLong(H_LENGTH));
+            index.putLong(H_LENGTH, length);
+        }
+        else {
+            length = scanLength(DATA_HEADER);
+            rebuildIndex(MIN_CAPACITY);
+        }
+        data.truncate(length);
+        log = null;
+    }
+
+    /* End of the run of good records starting at from. */
+    private long scanLength(long from) throws IOException {
+        ByteBuffer rec = ByteBuffer.allocate(RECORD);
+        long pos = from;
+        while (pos + RECORD <= length && readRecord(pos, rec))
+            pos += RECORD;
+        return pos;
+    }
+
+    /* Index the good records from from onwards; returns the new end of log. */
+    private long replay(long from) throws IOException {
+        ByteBuffer rec = ByteBuffer.allocate(RECORD);
+        ByteBuffer cur = ByteBuffer.allocate(RECORD);
+        byte[] p = new byte[CELLS];
+        long pos = from;
+        while (pos + RECORD <= length && readRecord(pos, rec)) {
+            rec.position(4);
+            rec.get(p);
+            long fp = fingerprint(p);
+            insert(fp, p, pos, find(index, fp, p, cur));
+            pos += RECORD;
+        }
+        return pos;
+    }
+
+    /* Write a fresh index of at least capacity slots covering the whole log, and swap it in. */
+    private void rebuildIndex(int capacity) throws IOException {
+        long records = (length - DATA_HEADER) / RECORD;
+        while (capacity < 2 * records)
+            capacity *= 2;
+
+        Path tmp = dir.resolve("index.new");
+        Files.deleteIfExists(tmp);
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer m = ch.map(FileChannel.MapMode.READ_WRITE, 0, INDEX_HEADER + (long) capacity * SLOT);
+            m.order(ByteOrder.LITTLE_ENDIAN);
+            m.putInt(H_MAGIC, INDEX_MAGIC);
+            m.putInt(H_VERSION, VERSION);
+            m.putInt(H_CAPACITY, capacity);
+            m.putLong(H_GENERATION, generation);
+
+            ByteBuffer rec = ByteBuffer.allocate(RECORD);
+            ByteBuffer cur = ByteBuffer.allocate(RECORD);
+            byte[] p = new byte[CELLS];
+            int count = 0;
+            for (long pos = DATA_HEADER; pos + RECORD <= length && readRecord(pos, rec); pos += RECORD) {
+                rec.position(4);
+                rec.get(p);
+                long fp = fingerprint(p);
+                if (find(m, fp, p, cur) < 0)
+                    count++;
+                store(m, fp, p, pos, cur);
+            }
+            m.putInt(H_COUNT, count);
+            m.putLong(H_LENGTH, length);
+            m.force();
+        }
+        swapIndex(tmp);
+    }
+
+    /* Replace the index file with tmp, retiring the one readers may have mapped. */
+    private void swapIndex(Path tmp) throws IOException {
+        MappedByteBuffer old = index;
+        Files.move(tmp, dir.resolve("index"), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        if (null != old)
+            old.putInt(H_RETIRED, 1);
+        if (null != indexChannel)
+            indexChannel.close();
+        mapIndex();
+    }
+
+    private void mapIndex() throws IOException {
+        Path ip = dir.resolve("index");
+        if (readOnly) {
+            indexChannel = FileChannel.open(ip, StandardOpenOption.READ);
+            index = indexChannel.map(FileChannel.MapMode.READ_ONLY, 0, indexChannel.size());
+        }
+        else {
+            indexChannel = FileChannel.open(ip, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, indexChannel.size());
+        }
+        index.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /* True if the mapped index has a good header and all the slots it claims. */
+    private boolean indexIntact() {
+        if (index.capacity() < INDEX_HEADER || index.getInt(H_MAGIC) != INDEX_MAGIC)
+            return false;
+        int capacity = index.getInt(H_CAPACITY);
+        return Integer.bitCount(capacity) == 1 && (long) INDEX_HEADER + (long) capacity * SLOT <= index.capacity();
+    }
+
+    /* Map the index for a reader, which cannot rebuild a damaged one. */
+    private void mapReaderIndex() throws IOException {
+        mapIndex();
+        if (!indexIntact())
+            throw new IOException(dir.resolve("index") + " is damaged; open the store for writing to rebuild it");
+    }
+
+    private void openReader() throws IOException {
+        openLog();
+        mapReaderIndex();
+    }
+
+    private void openLog() throws IOException {
+        data = FileChannel.open(dir.resolve("data"), StandardOpenOption.READ);
+        ByteBuffer h = ByteBuffer.allocate(DATA_HEADER);
+        readFully(data, h, 0);
+        if (h.getInt(0) != DATA_MAGIC || h.getInt(4) != VERSION)
+            throw new IOException(dir.resolve("data") + " is not a solution store");
+        generation = h.getLong(8);
+    }
+
+    /*
+     * Reader side of a retired index: the writer has grown or compacted the
+     * store.  Map the new index, and reopen the log too if it was compacted
+     * into a new generation.  The writer moves the log into place before the
+     * index, so by now both are current.
+     */
+    private synchronized void remap() throws IOException {
+        if (index().getInt(H_RETIRED) == 0)
+            return;
+        indexChannel.close();
+        mapReaderIndex();
+        if (index.getLong(H_GENERATION) != generation) {
+            FileChannel old = data;
+            openLog();
+            log = null;
+            old.close();
+        }
+    }
+
+    /*
+     * Offset of the record for puzzle p, or -1.  Each candidate slot's record
+     * is read into rec and checked, so fingerprint collisions and damaged
+     * records are skipped.
+     */
+    private long find(ByteBuffer m, long fp, byte[] p, ByteBuffer rec) throws IOException {
+        int capacity = m.getInt(H_CAPACITY), mask = capacity - 1;
+        for (int i = (int) fp & mask, n = 0; n < capacity; i = (i + 1) & mask, n++) {
+            int slot = INDEX_HEADER + i * SLOT;
+            long f = m.getLong(slot);
+            if (f == 0)
+                return -1;
+            if (f == fp) {
+                long offset = m.getLong(slot + 8);
+                if (readRecord(offset, rec) && samePuzzle(rec, p))
+                    return offset;
+            }
+        }
+        return -1;
+    }
+
+    /* Point puzzle p at offset in the live index, growing it when half full. */
+    private void insert(long fp, byte[] p, long offset, long existing) throws IOException {
+        int capacity = index.getInt(H_CAPACITY);
+        if (existing < 0 && 2 * (index.getInt(H_COUNT) + 1) > capacity) {
+            rebuildIndex(2 * capacity);     // picks up the record just appended
+            return;
+        }
+        if (existing < 0)
+            index.putInt(H_COUNT, index.getInt(H_COUNT) + 1);
+        store(index, fp, p, offset, ByteBuffer.allocate(RECORD));
+    }
+
+    /*
+     * Write (fp, offset) into p's slot, or the first empty one.  The offset
+     * goes in before the fingerprint so readers never follow a half slot.
+     */
+    private void store(ByteBuffer m, long fp, byte[] p, long offset, ByteBuffer rec) throws IOException {
+        int capacity = m.getInt(H_CAPACITY), mask = capacity - 1;
+        for (int i = (int) fp & mask, n = 0; n < capacity; i = (i + 1) & mask, n++) {
+            int slot = INDEX_HEADER + i * SLOT;
+            long f = m.getLong(slot);
+            if (f == 0 || (f == fp && readRecord(m.getLong(slot + 8), rec) && samePuzzle(rec, p))) {
+                m.putLong(slot + 8, offset);
+                m.putLong(slot, fp);
+                return;
+            }
+        }
+        throw new IllegalStateException("Solution store index is full");
+    }
+
+    /* Read the record at offset into rec; false unless it is whole and its crc matches. */
+    private boolean readRecord(long offset, ByteBuffer rec) throws IOException {
+        if (offset < DATA_HEADER)
+            return false;
+        MappedByteBuffer m = log;
+        if (null == m || offset + RECORD > m.capacity()) {
+            m = mapLog();
+            if (offset + RECORD > m.capacity())
+                return false;
+        }
+        rec.clear();
+        byte[] b = rec.array();
+        int at = (int) offset;
+        for (int i = 0; i < RECORD; i++)
+            b[i] = m.get(at + i);
+        return rec.getInt(0) == RECORD_MARK && rec.getInt(RECORD - 4) == crc(rec.array());
+    }
+
+    /* Normalized squares as Validator digits, 0 for unfilled. */
+    private static int[] digits(byte[] squares) {
+        int[] d = new int[CELLS];
+        for (int i = 0; i < CELLS; i++)
+            d[i] = (squares[i] == '.') ? 0 : squares[i] - '0';
+        return d;
+    }
+
+    private static boolean samePuzzle(ByteBuffer rec, byte[] p) {
+        return matches(rec, 4, p);
+    }
+
+    /* True if rec holds the bytes b from position at. */
+    private static boolean matches(ByteBuffer rec, int at, byte[] b) {
+        for (int i = 0; i < b.length; i++) {
+            if (rec.get(at + i) != b[i])
+                return false;
+        }
+        return true;
+    }
+
+    private static Record toRecord(ByteBuffer rec) {
+        byte[] b = rec.array();
+        return new Record(
+                new String(b, 4, CELLS, StandardCharsets.US_ASCII),
+                new String(b, 4 + CELLS, CELLS, StandardCharsets.US_ASCII),
+                rec.getLong(4 + 2 * CELLS),
+                rec.getLong(4 + 2 * CELLS + 8));
+    }
+
+    private static int crc(byte[] rec) {
+        CRC32 c = new CRC32();
+        c.update(rec, 0, RECORD - 4);
+        return (int) c.getValue();
+    }
+
+    private long newGeneration() {
+        return System.currentTimeMillis() ^ random.nextLong();
+    }
+
+    private static void writeDataHeader(FileChannel ch, long generation) throws IOException {
+        ByteBuffer h = ByteBuffer.allocate(DATA_HEADER);
+        h.putInt(DATA_MAGIC).putInt(VERSION).putLong(generation).flip();
+        while (h.hasRemaining())
+            ch.write(h, h.position());
+        ch.force(true);
+    }
+
+    private static void readFully(FileChannel ch, ByteBuffer b, long pos) throws IOException {
+        while (b.hasRemaining()) {
+            if (ch.read(b, pos + b.position()) < 0)
+                throw new IOException("Unexpected end of file");
+        }
+    }
+}
@@ -28,9 +28,7 @@ package sudoku;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -49,23 +47,24 @@ public class Solver {
     static List<List<String>>           unitList = Solver.unitListBuilder();
     static Map<String, List<List<String>>> units = Solver.unitsBuilder();
     static Map<String, List<String>>       peers = Solver.peersBuilder();
+    static volatile SolutionStore          store;
+
+    /*
+     * The three builders below turn the int index tables of Topology.CLASSIC
+     * into square names, so class initialization is a few list copies rather
+     * than scans of every unit for every square.
+     */
 
     /* Builds a list of peers for each square. */
     private static Map<String, List<String>> peersBuilder() {
+        Topology t = Topology.CLASSIC;
         Map<String, List<String>> peers = new HashMap<String, List<String>>();
 
-        for (String s: squares) {
-            List<List<String>> sunits = units.get(s);
-            HashSet<String> hs = new HashSet<String>();
-            for (List<String> u: sunits) {
-                for (String t: u) {
-                    if (!t.equals(s))
-                        hs.add(t);
-                }
-            }
-            List<String> ls = new ArrayList<String>();
-            ls.addAll(hs);
-            peers.put(s, ls);
+        for (int s = 0; s < squares.size(); s++) {
+            List<String> ls = new ArrayList<String>(t.peerStart[s + 1] - t.peerStart[s]);
+            for (int i = t.peerStart[s]; i < t.peerStart[s + 1]; i++)
+                ls.add(squares.get(t.peers[i]));
+            peers.put(squares.get(s), ls);
         }
 
         return peers;
@@ -73,61 +72,28 @@ public class Solver {
 
     /* Builds a list of units for each square. */
     private static Map<String, List<List<String>>> unitsBuilder() {
+        Topology t = Topology.CLASSIC;
         Map<String, List<List<String>>> units = new HashMap<String, List<List<String>>>();
 
-        for (String s: squares) {
-            unitList.stream()
-                    .filter(u -> u.contains(s))
-                    .forEach(u -> {
-                        if (!units.containsKey(s)) {
-                            units.put(s, new ArrayList<List<String>>() );
-                        }
-                        units.get(s).add(u);
-                    });
+        for (int s = 0; s < squares.size(); s++) {
+            List<List<String>> su = new ArrayList<List<String>>();
+            for (int i = t.cellUnitStart[s]; i < t.cellUnitStart[s + 1]; i++)
+                su.add(unitList.get(t.cellUnits[i]));
+            units.put(squares.get(s), su);
         }
         return units;
     }
 
-    /* Builds a list of all units for the sudoku board. */
+    /* Builds a list of all units for the sudoku board: rows, columns, then blocks. */
     private static List<List<String>> unitListBuilder() {
+        Topology t = Topology.CLASSIC;
         List<List<String>> unitList = new ArrayList<List<String>>();
-        List<String> u;
 
-        // row units
-        for (Character r : rows) {
-            u = new ArrayList<String>();
-            for (Character c : cols) {
-                u.add(""+r+c);
-            }
-            unitList.add(u);
-        }
-
-        // column units
-        for (Character c : cols) {
-            u = new ArrayList<String>();
-            for (Character r : rows) {
-                u.add(""+r+c);
-            }
-            unitList.add(u);
-        }
-
-        //  [cross(rs, cs) for rs in ('ABC','DEF','GHI') for cs in ('123','456','789')])
-        List<List<Character>> rowunits = new LinkedList<List<Character>>(Arrays.asList(
-                new LinkedList<Character>(Arrays.asList('A', 'B', 'C')),
-                new LinkedList<Character>(Arrays.asList('D', 'E', 'F')),
-                new LinkedList<Character>(Arrays.asList('G', 'H', 'I'))
-                ));
-        List<List<Character>> colunits = new LinkedList<List<Character>>(Arrays.asList(
-                new LinkedList<Character>(Arrays.asList('1', '2', '3')),
-                new LinkedList<Character>(Arrays.asList('4', '5', '6')),
-                new LinkedList<Character>(Arrays.asList('7', '8', '9'))
-                ));
-
-        for (List<Character> rl : rowunits) {
-            for (List<Character> cl : colunits) {
-                u = Solver.cross( rl, cl );
-                unitList.add(u);
-            }
+        for (int u = 0; u < t.unitCount; u++) {
+            List<String> ul = new ArrayList<String>(SIZE);
+            for (int k = 0; k < SIZE; k++)
+                ul.add(squares.get(t.unitSquare(u, k)));
+            unitList.add(ul);
         }
 
         return unitList;
@@ -261,8 +227,47 @@ public class Solver {
         return board;
     }
 
+    /*
+     * Solve a puzzle.  When a SolutionStore is in use it is consulted first,
+     * and new solutions are added to it unless it is read-only.  A stored
+     * answer that does not solve the puzzle is treated as a miss, as is a
+     * store that fails in any way (I/O, closed, full, lost its lock).
+     */
     public static Map<String, List<String>> solve(String grid) {
-        return search( createBoard( parseGrid(grid) ) );
+        SolutionStore st = store;
+        if (null == st)
+            return search( createBoard( parseGrid(grid) ) );
+
+        try {
+            String known = st.get(grid);
+            if (null != known) {
+                Map<String, List<String>> board = parseGrid(known);
+                if (Validator.isSolution(grid, board))
+                    return board;
+            }
+        }
+        catch (RuntimeException e) {
+            st = null;
+        }
+
+        Map<String, List<String>> board = search( createBoard( parseGrid(grid) ) );
+        if (null != board && null != st && !st.readOnly()) {
+            StringBuilder sb = new StringBuilder(SIZE*SIZE);
+            for (int d: Validator.digits(board))
+                sb.append(d);
+            try {
+                st.put(grid, sb.toString());
+            }
+            catch (RuntimeException e) {
+                // keep the solution even if it could not be stored
+            }
+        }
+        return board;
+    }
+
+    /* Use st as a read-through cache for solve(); null to stop. */
+    public static void useStore(SolutionStore st) {
+        store = st;
     }
 
     /* Search for a solution. */
@@ -271,6 +276,10 @@ public class Solver {
         if (null == board)  // failed earlier
             return null;
 
+        // Give up if another thread cancelled us (see Portfolio).
+        if (Thread.currentThread().isInterrupted())
+            return null;
+
         // Check for solved state.
         boolean solved = true;
         for (List<String> slist: board.values()) {
@@ -301,32 +310,15 @@ public class Solver {
         return null;       // search failed
     }
 
+    /* Print a board with all its possible values; see Renderer.Format.CANDIDATES. */
     public static void display(Map<String, List<String>> board) {
         if (null == board) {
             System.out.println("No solution!  Something went wrong.");
             return;
         }
 
-        List<String> slist = StringUtils.longestList((board.values()));
-        String ls = String.join("", slist);
-        int width = 1 + ls.length();
-        String sep = String.join("", Collections.nCopies(width*3 + 1, "-"));
-
-        System.out.print("\n");
-        for (Character r: rows) {
-            System.out.print(" ");
-            for (Character c: cols) {
-                String key = "" + r + c;
-                String cell = StringUtils.center(String.join("", board.get(key)), width);
-                System.out.print(cell);
-                if (c == '3' || c == '6')
-                    System.out.print("| ");
-            }
-            System.out.print("\n");
-            if (r == 'C' || r == 'F')
-                System.out.print( String.join("+", Collections.nCopies(3, sep)) + "\n");
-        }
-        System.out.print("\n");
+        Renderer r = new Renderer(Renderer.Format.CANDIDATES);
+        System.out.print("\n" + r.board(board).buffer());
     }
 
     public static List<String> cross(List<Character> a, List<Character> b) {
@@ -349,7 +341,8 @@ public class Solver {
         System.out.println("Found solution:");
         Solver.display(solution);
 
-        if ( TestSudoku.boardEquality(solution, Solver.parseGrid(targetSolution)) ) {
+        if ( Validator.isSolution(inputPuzzle, solution)
+                && Validator.diff(Validator.digits(solution), Validator.digits(targetSolution)).isEmpty() ) {
             System.out.println("Found solution matches the target solution!");
         }
         else {
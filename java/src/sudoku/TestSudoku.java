@@ -2,12 +2,26 @@ package sudoku;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
+import java.util.zip.CRC32;
 
 import org.junit.Test;
 import org.junit.Ignore;
@@ -141,6 +155,506 @@ public class TestSudoku {
         fail("Not yet implemented");
     }
 
+    @Test
+    public void testValidator() {
+        String p = Puzzles.hardPuzzles.get(0);
+        int[] puzzle = Validator.digits(p);
+        int[] grid = Validator.digits(Puzzles.hardSolutions.get(0));
+
+        assertTrue( Validator.isValid(grid) );
+        assertTrue( Validator.isSolution(puzzle, grid) );
+        assertTrue( Validator.check(puzzle, grid).isEmpty() );
+        assertTrue( Validator.isSolution(p, Solver.solve(p)) );
+        assertFalse( Validator.isValid(puzzle) );
+
+        // Swapping two squares of a row keeps the row valid but breaks the columns.
+        int t = grid[0]; grid[0] = grid[1]; grid[1] = t;
+        assertFalse( Validator.isValid(grid) );
+        List<Validator.Diff> diff = Validator.check(null, grid);
+        assertTrue( diff.stream().allMatch(d -> d.kind == Validator.Kind.DUPLICATE) );
+        assertTrue( diff.stream().anyMatch(d -> d.name().equals("A1")) );
+
+        // Clearing a given is reported as unfilled, against the given.
+        grid = Validator.digits(Puzzles.hardSolutions.get(0));
+        int given = Validator.digits(p)[9];   // B1
+        grid[9] = 0;
+        diff = Validator.check(puzzle, grid);
+        assertTrue( 1 == diff.size() );
+        assertTrue( Validator.Kind.UNFILLED == diff.get(0).kind );
+        assertTrue( given == diff.get(0).expected );
+
+        // Changing a given is reported against the given.
+        int wrong = given % 9 + 1;
+        grid[9] = wrong;
+        diff = Validator.check(puzzle, grid);
+        assertTrue( diff.stream().anyMatch(d -> d.square == 9 && d.kind == Validator.Kind.GIVEN_MISMATCH
+                && d.expected == given && d.actual == wrong) );
+
+        // Differences between two boards are plain mismatches.
+        diff = Validator.diff(grid, Validator.digits(Puzzles.hardSolutions.get(0)));
+        assertTrue( 1 == diff.size() );
+        assertTrue( Validator.Kind.MISMATCH == diff.get(0).kind );
+        assertTrue( given == diff.get(0).expected && wrong == diff.get(0).actual );
+
+        // Boards and puzzles of the wrong size are refused rather than read past.
+        int[] board = grid;
+        for (Runnable r: Arrays.<Runnable>asList(() -> Validator.check(new int[10], board),
+                () -> Validator.diff(board, null), () -> Validator.diff(new int[10], board))) {
+            try {
+                r.run();
+                fail("accepted a board without 81 squares");
+            }
+            catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testBatchSolver() {
+        List<String> puzzles = batchPuzzles();
+        int n = puzzles.size();
+        ByteBuffer in = encode(puzzles);
+        ByteBuffer out = ByteBuffer.allocateDirect(n * 81);
+
+        try (BatchSolver batch = new BatchSolver(2)) {
+            assertTrue( n - 1 == batch.solve(in, out, n) );
+            assertTrue( n - 1 == batch.solve(in, out, n) );   // arenas are reused
+
+            // A failing worker fails the batch only after the others stop; the next batch runs normally.
+            try {
+                batch.solve(in, out.asReadOnlyBuffer(), n);
+                fail("wrote to a read-only buffer");
+            }
+            catch (IllegalStateException e) {
+                // expected
+            }
+            assertTrue( n - 1 == batch.solve(in, out, n) );
+
+            try {
+                batch.solve(in, out, 30000000);           // 81 times this overflows an int
+                fail("batch larger than its buffers");
+            }
+            catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        for (int i = 0; i < n - 1; i++) {
+            int[] grid = Validator.digits(BatchSolver.decode(out, i * 81));
+            assertTrue( Validator.isSolution(Validator.digits(puzzles.get(i)), grid) );
+        }
+        assertTrue( BatchSolver.decode(out, (n - 1) * 81).matches("\\.{81}") );
+
+        int[] solution = new int[81];
+        assertTrue( new Arena().solve(Validator.digits(Puzzles.hardPuzzles.get(3)), solution) );
+        assertTrue( Validator.diff(solution, Validator.digits(Puzzles.hardSolutions.get(3))).isEmpty() );
+
+        // Search on from a propagated board without loading it again.
+        Arena arena = new Arena();
+        int first = Puzzles.easyPuzzles.size();
+        assertTrue( arena.propagate(in, first * 81) > 0 );
+        assertTrue( arena.search(solution) );
+        assertTrue( Validator.isSolution(Validator.digits(puzzles.get(first)), solution) );
+    }
+
+    @Test
+    public void testCli() throws IOException {
+        String input = "# two puzzles\n" + Puzzles.hardPuzzles.get(2) + "\n" + Puzzles.easyPuzzles.get(0) + "\n";
+        for (Engine e: Engine.values()) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            Cli cli = new Cli(Renderer.Format.COMPACT, e, 2, bytes);
+            cli.read(new ByteArrayInputStream(input.getBytes(StandardCharsets.US_ASCII)));
+            cli.finish();
+
+            String[] lines = bytes.toString().split("\n");
+            assertTrue( 2 == lines.length );
+            assertTrue( Validator.diff(Validator.digits(lines[0]), Validator.digits(Puzzles.hardSolutions.get(2))).isEmpty() );
+            assertTrue( Validator.diff(Validator.digits(lines[1]), Validator.digits(Puzzles.easySolutions.get(0))).isEmpty() );
+        }
+
+        // A truncated puzzle at the end of one input does not run into the next.
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Cli cli = new Cli(Renderer.Format.COMPACT, Engine.ARENA, 1, bytes);
+        cli.read(new ByteArrayInputStream("123.456".getBytes(StandardCharsets.US_ASCII)));
+        cli.read(new ByteArrayInputStream(Puzzles.hardPuzzles.get(2).getBytes(StandardCharsets.US_ASCII)));
+        cli.finish();
+        String[] lines = bytes.toString().split("\n");
+        assertTrue( 1 == lines.length );
+        assertTrue( Validator.diff(Validator.digits(lines[0]), Validator.digits(Puzzles.hardSolutions.get(2))).isEmpty() );
+
+        // A producer that pauses mid puzzle gets the answers read so far before Cli blocks.
+        String first = Puzzles.hardPuzzles.get(2).replaceAll("[^\\d\\.]", "");
+        String second = Puzzles.easyPuzzles.get(0).replaceAll("[^\\d\\.]", "");
+        ByteArrayOutputStream slow = new ByteArrayOutputStream();
+        Cli filter = new Cli(Renderer.Format.COMPACT, Engine.ARENA, 1, slow);
+        List<String> parts = Arrays.asList(first + second.substring(0, 40), second.substring(40));
+        filter.read(new InputStream() {
+            int next;
+
+            @Override
+            public int read() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (next == parts.size())
+                    return -1;
+                if (next > 0)
+                    assertTrue( slow.toString().equals(Puzzles.hardSolutions.get(2).replaceAll("[^\\d]", "") + "\n") );
+                byte[] part = parts.get(next++).getBytes(StandardCharsets.US_ASCII);
+                System.arraycopy(part, 0, b, off, part.length);
+                return part.length;
+            }
+        });
+        filter.finish();
+        lines = slow.toString().split("\n");
+        assertTrue( 2 == lines.length );
+        assertTrue( Validator.diff(Validator.digits(lines[1]), Validator.digits(Puzzles.easySolutions.get(0))).isEmpty() );
+    }
+
+    @Test
+    public void testRenderer() throws IOException {
+        String solution = Puzzles.hardSolutions.get(1).replaceAll("[^\\d]", "");
+        int[] grid = Validator.digits(solution);
+
+        Renderer r = new Renderer(Renderer.Format.COMPACT);
+        r.digits(grid).digits(grid);
+        assertTrue( (solution + "\n" + solution + "\n").equals(r.buffer().toString()) );
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        r.writeTo(Channels.newChannel(bytes));
+        assertTrue( 0 == r.length() );
+        assertTrue( 2 * 82 == bytes.size() );
+
+        r = new Renderer(Renderer.Format.GRID);
+        String[] lines = r.digits(grid).buffer().toString().split("\n");
+        assertTrue( 11 == lines.length );
+        assertTrue( lines[3].startsWith("------+") );
+
+        // Candidate columns are as wide as the longest candidate list plus one.
+        r = new Renderer(Renderer.Format.CANDIDATES);
+        StringBuilder sb = new StringBuilder();
+        r.board(Solver.createBoard(Solver.parseGrid(Puzzles.hardPuzzles.get(0)))).writeTo(sb);
+        lines = sb.toString().split("\n");
+        assertTrue( lines[0].startsWith("  12358  1389 ") );
+        assertTrue( lines[3].equals(String.join("+", Collections.nCopies(3, StringUtils.center("", 22, '-')))) );
+    }
+
+    @Test
+    public void testPortfolio() {
+        List<Portfolio.Strategy> strategies = new LinkedList<Portfolio.Strategy>(Portfolio.defaults());
+        strategies.add(Portfolio.Strategy.norvig("norvig"));
+
+        try (Portfolio portfolio = new Portfolio(strategies)) {
+            for (int i = 0; i < Puzzles.hardPuzzles.size(); i++) {
+                Portfolio.Result r = portfolio.solve(Puzzles.hardPuzzles.get(i));
+                assertTrue( null != r );
+                assertTrue( Validator.diff(r.solution, Validator.digits(Puzzles.hardSolutions.get(i))).isEmpty() );
+            }
+            assertTrue( null == portfolio.solve(noSolution()) );
+
+            long wins = portfolio.wins().values().stream().mapToLong(Long::longValue).sum();
+            assertTrue( Puzzles.hardPuzzles.size() == wins );
+
+            try {
+                portfolio.solve(new int[10]);
+                fail("raced a 10 square puzzle");
+            }
+            catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+
+        // Wins are counted by name, so names must be unique.
+        strategies.add(Portfolio.Strategy.arena("first", Arena.Heuristic.FIRST, 7));
+        try {
+            new Portfolio(strategies).close();
+            fail("duplicate strategy name accepted");
+        }
+        catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testScheduler() {
+        List<String> puzzles = batchPuzzles();
+        int n = puzzles.size();
+        ByteBuffer in = encode(puzzles);
+        ByteBuffer out = ByteBuffer.allocateDirect(n * 81);
+
+        // Split everything that needs a search so both paths are exercised.
+        try (Scheduler scheduler = new Scheduler(2, 1f, Topology.CLASSIC)) {
+            Scheduler.Report report = scheduler.solve(in, out, n);
+            assertTrue( n - 1 == report.solved );
+            assertTrue( 0 == report.predicted[0] );          // easy: propagation alone solves it
+            assertTrue( report.predicted[1] > 0 && report.split[1] );
+            assertTrue( report.depth[1] > 1 );                // and its branches split again
+            assertTrue( -1 == report.predicted[n - 1] );
+            assertTrue( report.makespan > 0 );
+            assertTrue( report.correlation() >= -1 && report.correlation() <= 1 );
+        }
+        for (int i = 0; i < n - 1; i++)
+            assertTrue( Validator.isSolution(Validator.digits(puzzles.get(i)), Validator.digits(BatchSolver.decode(out, i * 81))) );
+        assertTrue( BatchSolver.decode(out, (n - 1) * 81).matches("\\.{81}") );
+    }
+
+    /* The first easy puzzle with two 1s in row A, so it has no solution. */
+    private static String noSolution() {
+        return "11" + Puzzles.easyPuzzles.get(0).replaceAll("[^\\d\\.]", "").substring(2);
+    }
+
+    /* Every easy and hard puzzle, then noSolution(). */
+    private static List<String> batchPuzzles() {
+        List<String> puzzles = new LinkedList<String>();
+        puzzles.addAll(Puzzles.easyPuzzles);
+        puzzles.addAll(Puzzles.hardPuzzles);
+        puzzles.add(noSolution());
+        return puzzles;
+    }
+
+    /* puzzles packed back to back in a direct buffer, 81 bytes each, as BatchSolver reads them. */
+    private static ByteBuffer encode(List<String> puzzles) {
+        ByteBuffer in = ByteBuffer.allocateDirect(puzzles.size() * 81);
+        for (int i = 0; i < puzzles.size(); i++)
+            assertTrue( BatchSolver.encode(puzzles.get(i), in, i * 81) );
+        return in;
+    }
+
+    /* A distinct puzzle for store tests: hard solution 0 with the squares of i's set bits blanked. */
+    private static String fakePuzzle(int i) {
+        char[] c = Puzzles.hardSolutions.get(0).replaceAll("[^\\d]", "").toCharArray();
+        for (int k = 0; k < 20; k++) {
+            if ((i >> k & 1) != 0)
+                c[k] = '.';
+        }
+        return new String(c);
+    }
+
+    @Test
+    public void testSolutionStore() throws IOException {
+        Path dir = Files.createTempDirectory("sudoku-store");
+        try {
+            String dots = String.format("%81s", "").replace(' ', '.');
+            String p = Puzzles.hardPuzzles.get(0);
+            String s = Puzzles.hardSolutions.get(0).replaceAll("[^\\d]", "");
+
+            try (SolutionStore store = SolutionStore.open(dir)) {
+                assertTrue( null == store.get(p) );
+                assertTrue( store.put(p, s) );
+                assertFalse( store.put(p, s) );               // already there
+                assertTrue( s.equals(store.get(p)) );
+                assertTrue( s.equals(store.get(p.replace('.', '0'))) );
+
+                // Only real solutions are stored.
+                for (String wrong: new String[] { dots, Puzzles.hardSolutions.get(1) }) {
+                    try {
+                        store.put(p, wrong);
+                        fail("stored a wrong solution");
+                    }
+                    catch (IllegalArgumentException e) {
+                        // expected
+                    }
+                }
+
+                // Stats replace the entry without adding a puzzle.
+                assertTrue( store.put(p, s, 42, 1000) );
+                assertTrue( 42 == store.record(p).nodes );
+                assertTrue( 1 == store.size() );
+
+                // A reader in another "process" shares the mapped index, even across a resize.
+                try (SolutionStore reader = SolutionStore.openReadOnly(dir)) {
+                    assertTrue( s.equals(reader.get(p)) );
+                    for (int i = 1; i <= 5000; i++)
+                        store.put(fakePuzzle(i), s);
+                    assertTrue( 5001 == store.size() );
+                    assertTrue( s.equals(reader.get(fakePuzzle(4999))) );
+
+                    store.compact();
+                    assertTrue( 5001 == store.size() );
+                    try {
+                        SolutionStore.open(dir).close();
+                        fail("second writer opened a compacted store");
+                    }
+                    catch (IllegalStateException e) {
+                        // expected: the compacted log is still locked
+                    }
+                    assertTrue( 42 == reader.record(p).nodes );
+                }
+            }
+
+            // Simulate a crash in the middle of an append.
+            long size = Files.size(dir.resolve("data"));
+            try (FileChannel ch = FileChannel.open(dir.resolve("data"), StandardOpenOption.WRITE)) {
+                ch.write(ByteBuffer.wrap(new byte[SolutionStore.RECORD / 2]), size);
+            }
+            try (SolutionStore store = SolutionStore.open(dir)) {
+                assertTrue( 5001 == store.size() );
+                assertTrue( size == Files.size(dir.resolve("data")) );
+                assertTrue( s.equals(store.get(fakePuzzle(17))) );
+
+                // An interrupted caller neither breaks the store nor loses its interrupt.
+                Thread.currentThread().interrupt();
+                try {
+                    assertTrue( s.equals(store.get(fakePuzzle(18))) );
+                    assertTrue( store.put(fakePuzzle(9001), s) );
+                    store.sync();
+                    assertTrue( Thread.interrupted() );
+                }
+                finally {
+                    Thread.interrupted();
+                }
+                assertTrue( s.equals(store.get(fakePuzzle(9001))) );
+                assertTrue( 5002 == store.size() );
+            }
+
+            // A damaged index is rebuilt from the log by a writer; a reader refuses it.
+            Files.write(dir.resolve("index"), new byte[4096]);
+            try {
+                SolutionStore.openReadOnly(dir).close();
+                fail("reader opened a damaged index");
+            }
+            catch (IOException e) {
+                // expected
+            }
+            try (SolutionStore store = SolutionStore.open(dir)) {
+                assertTrue( 5002 == store.size() );
+            }
+
+            // Another writer appends a bad answer, bypassing put's checks.
+            String q = Puzzles.hardPuzzles.get(2);
+            ByteBuffer bad = ByteBuffer.allocate(SolutionStore.RECORD);
+            bad.putInt(SolutionStore.RECORD_MARK).put(SolutionStore.normalize(q));
+            bad.put(SolutionStore.normalize(dots)).putLong(0).putLong(0);
+            CRC32 crc = new CRC32();
+            crc.update(bad.array(), 0, SolutionStore.RECORD - 4);
+            bad.putInt((int) crc.getValue()).flip();
+            try (FileChannel ch = FileChannel.open(dir.resolve("data"), StandardOpenOption.WRITE)) {
+                ch.write(bad, ch.size());
+            }
+
+            // A lost index is rebuilt from the log.
+            Files.delete(dir.resolve("index"));
+            try (SolutionStore store = SolutionStore.open(dir)) {
+                assertTrue( 5003 == store.size() );
+                assertTrue( dots.equals(store.get(q)) );
+
+                // Solver.solve reads through the store, distrusts the bad answer and repairs it.
+                Solver.useStore(store);
+                try {
+                    assertTrue( Validator.isSolution(q, Solver.solve(q)) );
+                    assertTrue( Validator.isSolution(Validator.digits(q), Validator.digits(store.get(q))) );
+                    assertTrue( Validator.isSolution(q, Solver.solve(q)) );
+                }
+                finally {
+                    Solver.useStore(null);
+                }
+            }
+
+            // A closed store refuses every call, and Solver.solve searches instead.
+            SolutionStore shut = SolutionStore.open(dir);
+            shut.close();
+            try {
+                shut.get(q);
+                fail("read a closed store");
+            }
+            catch (IllegalStateException e) {
+                // expected
+            }
+            Solver.useStore(shut);
+            try {
+                assertTrue( Validator.isSolution(q, Solver.solve(q)) );
+            }
+            finally {
+                Solver.useStore(null);
+            }
+        }
+        finally {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+                for (Path f: files)
+                    Files.delete(f);
+            }
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void testVariant() throws IOException {
+        // Classic, and a jigsaw whose regions are the boxes, compile to the classic tables.
+        String boxes = "111222333 111222333 111222333 444555666 444555666 444555666 777888999 777888999 777888999";
+        String zeroBased = "000111222 000111222 000111222 333444555 333444555 333444555 666777888 666777888 666777888";
+        for (Topology t: new Topology[] { Variant.classic().compile(), Variant.jigsaw(boxes).compile(),
+                Variant.jigsaw(zeroBased).compile() }) {
+            assertTrue( Arrays.equals(Topology.CLASSIC.unitCells, t.unitCells) );
+            assertTrue( Arrays.equals(Topology.CLASSIC.cellUnits, t.cellUnits) );
+            assertTrue( Arrays.equals(Topology.CLASSIC.peers, t.peers) );
+        }
+
+        for (Variant v: new Variant[] { Variant.x(), Variant.windoku() }) {
+            Topology t = v.compile();
+            assertTrue( (v.name().equals("x") ? 29 : 31) == t.unitCount() );
+
+            // Fill an empty grid, keep every third square as givens and solve again.
+            int[] grid = new int[81];
+            assertTrue( new Arena(t).solve(new int[81], grid) );
+            assertTrue( Validator.isValid(grid, t) );
+            int[] puzzle = new int[81], solution = new int[81];
+            for (int s = 0; s < 81; s += 3)
+                puzzle[s] = grid[s];
+            assertTrue( new Arena(t).solve(puzzle, solution) );
+            assertTrue( Validator.isValid(solution, t) && Validator.isSolution(puzzle, solution) );
+
+            // The command line and portfolio solve variants too.
+            StringBuilder sb = new StringBuilder();
+            for (int d: puzzle)
+                sb.append(d == 0 ? '.' : (char) ('0' + d));
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            Cli cli = new Cli(Renderer.Format.COMPACT, Engine.ARENA, t, 1, bytes);
+            cli.read(new ByteArrayInputStream(sb.toString().getBytes(StandardCharsets.US_ASCII)));
+            cli.finish();
+            assertTrue( Validator.isSolution(puzzle, Validator.digits(bytes.toString()), t) );
+            try (Portfolio portfolio = new Portfolio(Portfolio.defaults(), t)) {
+                assertTrue( Validator.isSolution(puzzle, portfolio.solve(puzzle).solution, t) );
+            }
+        }
+        assertTrue( Variant.parse("classic").compile().isClassic() );
+        assertFalse( Variant.parse("x").compile().isClassic() );
+        try {
+            new Cli(Renderer.Format.COMPACT, Engine.NORVIG, Variant.x().compile(), 1, new ByteArrayOutputStream());
+            fail("norvig engine accepted a variant");
+        }
+        catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertTrue( Variant.x().compile().peers.length > Topology.CLASSIC.peers.length );
+
+        // A jigsaw solution is checked against its regions, not the boxes.
+        Topology jigsaw = Variant.jigsaw("111222333 112223331 122233311 444555666 445556664 "
+                + "455566644 777888999 778889997 788899977").compile();
+        int[] grid = new int[81];
+        assertTrue( new Arena(jigsaw).solve(new int[81], grid) );
+        assertTrue( Validator.isSolution(new int[81], grid, jigsaw) );
+        assertTrue( Validator.check(null, grid, jigsaw).isEmpty() );
+        assertFalse( Validator.isSolution(new int[81], grid) );
+        assertFalse( Validator.check(null, grid).isEmpty() );
+
+        try {
+            Variant.jigsaw(boxes.substring(1)).compile();
+            fail("short region layout accepted");
+        }
+        catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            new Variant("bad").rows().unit("A1", "A1", "A3", "A4", "A5", "A6", "A7", "A8", "A9");
+            fail("repeated square accepted");
+        }
+        catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
     @Test
     public void testCross() {
         List<String> c = Solver.cross(Solver.rows, Solver.cols);
@@ -0,0 +1,124 @@
+package sudoku;
+
+import java.util.Arrays;
+
+/**
+ *  Sudoku topology as flat int index tables
+ *
+ *  This is the same information as Solver.unitList, Solver.units and
+ *  Solver.peers, but with squares numbered 0..80 (A1 = 0, A2 = 1, ... I9 = 80)
+ *  and every list packed into a single int[] so the bitmask engines can walk
+ *  them without boxing or hashing.
+ *
+ *      unitCells[u*9 + k]                         k-th square of unit u
+ *      cellUnits[cellUnitStart[s] .. [s+1])      units that square s belongs to
+ *      peers[peerStart[s] .. [s+1])              peers of square s
+ */
+public final class Topology {
+
+    static final int SIZE = 9;
+    static final int CELLS = SIZE * SIZE;
+
+    /* Rows, columns and 3x3 boxes. */
+    public static final Topology CLASSIC = new Topology("classic", classicUnits());
+
+    final String name;
+    final int unitCount;
+    final int[] unitCells;
+    final int[] cellUnitStart;
+    final int[] cellUnits;
+    final int[] peerStart;
+    final int[] peers;
+
+    /* Each unit is 9 square indexes that must hold the digits 1-9. */
+    Topology(String name, int[][] units) {
+        this.name = name;
+        this.unitCount = units.length;
+        this.unitCells = new int[unitCount * SIZE];
+
+        int[] count = new int[CELLS];
+        for (int u = 0; u < unitCount; u++) {
+            if (units[u].length != SIZE)
+                throw new IllegalArgumentException("Unit " + u + " of " + name + " does not have " + SIZE + " squares");
+            for (int k = 0; k < SIZE; k++) {
+                int s = units[u][k];
+                if (s < 0 || s >= CELLS)
+                    throw new IllegalArgumentException("Unit " + u + " of " + name + " has bad square " + s);
+                unitCells[u * SIZE + k] = s;
+                count[s]++;
+            }
+        }
+
+        // units for each square
+        cellUnitStart = new int[CELLS + 1];
+        for (int s = 0; s < CELLS; s++)
+            cellUnitStart[s + 1] = cellUnitStart[s] + count[s];
+        cellUnits = new int[cellUnitStart[CELLS]];
+        int[] fill = new int[CELLS];
+        for (int u = 0; u < unitCount; u++) {
+            for (int k = 0; k < SIZE; k++) {
+                int s = unitCells[u * SIZE + k];
+                cellUnits[cellUnitStart[s] + fill[s]++] = u;
+            }
+        }
+
+        // peers for each square, in square order and without repeats
+        int[][] ps = new int[CELLS][];
+        int total = 0;
+        boolean[] seen = new boolean[CELLS];
+        int[] tmp = new int[CELLS];
+        for (int s = 0; s < CELLS; s++) {
+            Arrays.fill(seen, false);
+            for (int i = cellUnitStart[s]; i < cellUnitStart[s + 1]; i++) {
+                int u = cellUnits[i];
+                for (int k = 0; k < SIZE; k++)
+                    seen[unitCells[u * SIZE + k]] = true;
+            }
+            seen[s] = false;
+            int n = 0;
+            for (int t = 0; t < CELLS; t++) {
+                if (seen[t])
+                    tmp[n++] = t;
+            }
+            ps[s] = Arrays.copyOf(tmp, n);
+            total += n;
+        }
+        peerStart = new int[CELLS + 1];
+        peers = new int[total];
+        for (int s = 0; s < CELLS; s++) {
+            peerStart[s + 1] = peerStart[s] + ps[s].length;
+            System.arraycopy(ps[s], 0, peers, peerStart[s], ps[s].length);
+        }
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public int unitCount() {
+        return unitCount;
+    }
+
+    /* True if the units are exactly the classic rows, columns and boxes, in that order. */
+    public boolean isClassic() {
+        return Arrays.equals(unitCells, CLASSIC.unitCells);
+    }
+
+    /* Square index of unit u, position k. */
+    public int unitSquare(int u, int k) {
+        return unitCells[u * SIZE + k];
+    }
+
+    /* 9 rows, then 9 columns, then 9 boxes; the same order as Solver.unitListBuilder. */
+    static int[][] classicUnits() {
+        int[][] units = new int[3 * SIZE][SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            for (int k = 0; k < SIZE; k++) {
+                units[i][k]            = i * SIZE + k;
+                units[SIZE + i][k]     = k * SIZE + i;
+                units[2 * SIZE + i][k] = ((i / 3) * 3 + k / 3) * SIZE + (i % 3) * 3 + k % 3;
+            }
+        }
+        return units;
+    }
+}
@@ -0,0 +1,219 @@
+package sudoku;
+
+import static sudoku.Topology.CELLS;
+import static sudoku.Topology.SIZE;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *  Solution validator
+ *
+ *  Checks a filled grid against the sudoku rules (classic rows, columns and
+ *  boxes, or the units of any Topology such as a compiled Variant) and
+ *  against the givens of the puzzle it claims to solve.  Grids are primitive int[81] arrays in
+ *  square order (A1, A2, ... I9) holding 1-9, with 0 for an unfilled square.
+ *
+ *  Each unit is checked with a 9-bit digit mask: a unit is correct exactly
+ *  when the OR of its digit bits is 0x3FE (bits 1 through 9).  The boolean
+ *  checks allocate nothing; check() and diff() return a structured list of
+ *  differences instead of printing them.
+ */
+public final class Validator {
+
+    static final int ALL = 0x3FE;
+
+    private Validator(){}
+
+    /* What is wrong with a square. */
+    public enum Kind {
+        UNFILLED,        // square holds no single digit
+        GIVEN_MISMATCH,  // square disagrees with a given of the puzzle
+        DUPLICATE,       // digit appears more than once in one of the square's units
+        MISMATCH         // square differs between two boards (see diff)
+    }
+
+    /* A single difference found on a board. */
+    public static final class Diff {
+        public final Kind kind;
+        public final int square;    // 0..80
+        public final int expected;  // 0 when there is no expectation
+        public final int actual;    // 0 when unfilled
+
+        Diff(Kind kind, int square, int expected, int actual) {
+            this.kind = kind;
+            this.square = square;
+            this.expected = expected;
+            this.actual = actual;
+        }
+
+        /* Norvig style square name, e.g. "A1". */
+        public String name() {
+            return squareName(square);
+        }
+
+        @Override
+        public String toString() {
+            return name() + ": " + kind + " " + actual + (expected != 0 ? " != " + expected : "");
+        }
+    }
+
+    public static String squareName(int square) {
+        return "" + (char) ('A' + square / SIZE) + (char) ('1' + square % SIZE);
+    }
+
+    /*
+     * Parse a puzzle string into digits.  Like Solver.parseGrid, everything
+     * except [0-9.] is ignored and '0' or '.' is an unfilled square.
+     * Returns null if the string does not hold exactly 81 squares.
+     */
+    public static int[] digits(String puzzle) {
+        if (null == puzzle)
+            return null;
+
+        int[] grid = new int[CELLS];
+        int n = 0;
+        for (int i = 0; i < puzzle.length(); i++) {
+            char c = puzzle.charAt(i);
+            if (c == '.' || (c >= '0' && c <= '9')) {
+                if (n == CELLS)
+                    return null;
+                grid[n++] = (c == '.') ? 0 : c - '0';
+            }
+        }
+        return (n == CELLS) ? grid : null;
+    }
+
+    /* Convert a Solver board to digits; squares with other than one value are 0. */
+    public static int[] digits(Map<String, List<String>> board) {
+        if (null == board)
+            return null;
+
+        int[] grid = new int[CELLS];
+        for (int i = 0; i < CELLS; i++) {
+            List<String> values = board.get(squareName(i));
+            if (values != null && values.size() == 1) {
+                char c = values.get(0).charAt(0);
+                grid[i] = (c >= '1' && c <= '9') ? c - '0' : 0;
+            }
+        }
+        return grid;
+    }
+
+    private static int bit(int d) {
+        return (d >= 1 && d <= SIZE) ? 1 << d : 0;
+    }
+
+    /* True if grid is completely filled and every row, column and box holds 1-9. */
+    public static boolean isValid(int[] grid) {
+        return isValid(grid, Topology.CLASSIC);
+    }
+
+    /* True if grid is completely filled and every unit of topology holds 1-9. */
+    public static boolean isValid(int[] grid, Topology topology) {
+        if (null == grid || grid.length != CELLS)
+            return false;
+
+        for (int u = 0; u < topology.unitCount(); u++) {
+            int m = 0;
+            for (int k = 0; k < SIZE; k++)
+                m |= bit(grid[topology.unitSquare(u, k)]);
+            if (m != ALL)
+                return false;
+        }
+        return true;
+    }
+
+    /* True if grid is a valid solved board that keeps every given of puzzle. */
+    public static boolean isSolution(int[] puzzle, int[] grid) {
+        return isSolution(puzzle, grid, Topology.CLASSIC);
+    }
+
+    /* As isSolution(int[], int[]) with the units of topology, e.g. a compiled Variant. */
+    public static boolean isSolution(int[] puzzle, int[] grid, Topology topology) {
+        if (null == puzzle || puzzle.length != CELLS)
+            return false;
+        if (!isValid(grid, topology))
+            return false;
+
+        for (int i = 0; i < CELLS; i++) {
+            if (puzzle[i] != 0 && puzzle[i] != grid[i])
+                return false;
+        }
+        return true;
+    }
+
+    public static boolean isSolution(String puzzle, Map<String, List<String>> board) {
+        return isSolution(digits(puzzle), digits(board));
+    }
+
+    /*
+     * Return everything wrong with grid as a solution of puzzle: unfilled
+     * squares, squares that contradict a given, and squares whose digit is
+     * repeated within a unit.  An empty list means grid solves puzzle.
+     * A null puzzle checks only the sudoku rules; any other puzzle must
+     * have 81 squares.
+     */
+    public static List<Diff> check(int[] puzzle, int[] grid) {
+        return check(puzzle, grid, Topology.CLASSIC);
+    }
+
+    /* As check(int[], int[]) with the units of topology, e.g. a compiled Variant. */
+    public static List<Diff> check(int[] puzzle, int[] grid, Topology topology) {
+        if (null != puzzle && puzzle.length != CELLS)
+            throw new IllegalArgumentException("Puzzle has " + puzzle.length + " squares, not " + CELLS);
+
+        List<Diff> diff = new ArrayList<Diff>();
+        if (null == grid || grid.length != CELLS) {
+            for (int i = 0; i < CELLS; i++)
+                diff.add(new Diff(Kind.UNFILLED, i, 0, 0));
+            return diff;
+        }
+
+        boolean[] dup = new boolean[CELLS];
+        for (int u = 0; u < topology.unitCount(); u++)
+            markDuplicates(grid, dup, topology, u);
+
+        for (int i = 0; i < CELLS; i++) {
+            int expected = (null != puzzle) ? puzzle[i] : 0;
+            if (0 == bit(grid[i]))
+                diff.add(new Diff(Kind.UNFILLED, i, expected, 0));
+            else if (expected != 0 && expected != grid[i])
+                diff.add(new Diff(Kind.GIVEN_MISMATCH, i, expected, grid[i]));
+            else if (dup[i])
+                diff.add(new Diff(Kind.DUPLICATE, i, 0, grid[i]));
+        }
+        return diff;
+    }
+
+    /* Flag the squares of unit u of topology that share a digit. */
+    private static void markDuplicates(int[] grid, boolean[] dup, Topology topology, int u) {
+        int seen = 0, twice = 0;
+        for (int k = 0; k < SIZE; k++) {
+            int b = bit(grid[topology.unitSquare(u, k)]);
+            twice |= seen & b;
+            seen |= b;
+        }
+        if (0 == twice)
+            return;
+        for (int k = 0; k < SIZE; k++) {
+            int s = topology.unitSquare(u, k);
+            if ((bit(grid[s]) & twice) != 0)
+                dup[s] = true;
+        }
+    }
+
+    /* Square by square differences between two 81 square boards; expected comes from b. */
+    public static List<Diff> diff(int[] a, int[] b) {
+        if (null == a || null == b || a.length != CELLS || b.length != CELLS)
+            throw new IllegalArgumentException("Boards must have " + CELLS + " squares");
+
+        List<Diff> diff = new ArrayList<Diff>();
+        for (int i = 0; i < CELLS; i++) {
+            if (a[i] != b[i])
+                diff.add(new Diff(Kind.MISMATCH, i, b[i], a[i]));
+        }
+        return diff;
+    }
+}
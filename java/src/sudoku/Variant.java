@@ -0,0 +1,229 @@
+package sudoku;
+
+import static sudoku.Topology.CELLS;
+import static sudoku.Topology.SIZE;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ *  Sudoku variant description
+ *
+ *  Describes which groups of 9 squares must each hold the digits 1-9, and
+ *  compiles that once into a Topology: the same flat int index tables that
+ *  Arena, BatchSolver and Scheduler use for the classic puzzle.  A variant
+ *  therefore solves through exactly the same code as a classic puzzle; only
+ *  the tables (and for extra units, the peer lists) are longer.
+ *
+ *      Topology x = new Variant("x").rows().columns().boxes()
+ *                         .unit("A1", "B2", "C3", "D4", "E5", "F6", "G7", "H8", "I9")
+ *                         .unit("A9", "B8", "C7", "D6", "E5", "F4", "G3", "H2", "I1")
+ *                         .compile();
+ *
+ *  Squares are named as in Solver (A1 .. I9) or numbered 0..80.
+ *
+ *  Arena, BatchSolver, Scheduler, Portfolio (Arena strategies), Validator
+ *  and Cli (--variant) take the compiled Topology.  Norvig's Solver works
+ *  on its own string tables and stays classic only.
+ */
+public final class Variant {
+
+    private final String name;
+    private final List<int[]> units = new ArrayList<int[]>();
+
+    public Variant(String name) {
+        this.name = name;
+    }
+
+    /* Rows, columns and boxes: compiles to tables identical to Topology.CLASSIC. */
+    public static Variant classic() {
+        return new Variant("classic").rows().columns().boxes();
+    }
+
+    /* X-Sudoku: both long diagonals are units too. */
+    public static Variant x() {
+        int[] down = new int[SIZE], up = new int[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            down[i] = i * SIZE + i;
+            up[i] = i * SIZE + (SIZE - 1 - i);
+        }
+        return new Variant("x").rows().columns().boxes().unit(down).unit(up);
+    }
+
+    /* Windoku: four extra 3x3 windows, each one square in from a corner of the grid. */
+    public static Variant windoku() {
+        Variant v = new Variant("windoku").rows().columns().boxes();
+        for (int r: new int[] { 1, 5 }) {
+            for (int c: new int[] { 1, 5 })
+                v.unit(block(r, c));
+        }
+        return v;
+    }
+
+    /*
+     * Jigsaw: rows, columns and 9 irregular regions in place of the boxes.
+     * layout gives each square's region as one character, in square order;
+     * characters other than [0-9a-zA-Z] (spaces, separators) are ignored.
+     */
+    public static Variant jigsaw(String layout) {
+        return new Variant("jigsaw").rows().columns().regions(layout);
+    }
+
+    /*
+     * A variant by command line name: classic, x, windoku, or
+     * jigsaw:LAYOUT with LAYOUT as for jigsaw().
+     */
+    public static Variant parse(String spec) {
+        switch (spec) {
+            case "classic": return classic();
+            case "x":       return x();
+            case "windoku": return windoku();
+            default:
+                if (spec.startsWith("jigsaw:"))
+                    return jigsaw(spec.substring("jigsaw:".length()));
+                throw new IllegalArgumentException("Unknown variant " + spec);
+        }
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public Variant rows() {
+        for (int r = 0; r < SIZE; r++) {
+            int[] u = new int[SIZE];
+            for (int c = 0; c < SIZE; c++)
+                u[c] = r * SIZE + c;
+            units.add(u);
+        }
+        return this;
+    }
+
+    public Variant columns() {
+        for (int c = 0; c < SIZE; c++) {
+            int[] u = new int[SIZE];
+            for (int r = 0; r < SIZE; r++)
+                u[r] = r * SIZE + c;
+            units.add(u);
+        }
+        return this;
+    }
+
+    public Variant boxes() {
+        for (int b = 0; b < SIZE; b++)
+            units.add(block((b / 3) * 3, (b % 3) * 3));
+        return this;
+    }
+
+    /* One unit per distinct region character of layout; see jigsaw(). */
+    public Variant regions(String layout) {
+        char[] region = new char[CELLS];
+        int n = 0;
+        for (int i = 0; i < layout.length(); i++) {
+            char c = layout.charAt(i);
+            if ((c >= '0' && c <= '9') || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')) {
+                if (n == CELLS)
+                    throw new IllegalArgumentException("Region layout has more than " + CELLS + " squares");
+                region[n++] = c;
+            }
+        }
+        if (n != CELLS)
+            throw new IllegalArgumentException("Region layout has " + n + " squares, not " + CELLS);
+
+        boolean[] done = new boolean[CELLS];
+        for (int s = 0; s < CELLS; s++) {
+            if (done[s])
+                continue;
+            int[] u = new int[CELLS];
+            int k = 0;
+            for (int t = s; t < CELLS; t++) {
+                if (region[t] == region[s]) {
+                    u[k++] = t;
+                    done[t] = true;
+                }
+            }
+            if (k != SIZE)
+                throw new IllegalArgumentException("Region '" + region[s] + "' has " + k + " squares, not " + SIZE);
+            units.add(Arrays.copyOf(u, k));
+        }
+        return this;
+    }
+
+    /* An extra unit of 9 named squares, e.g. "A1", "B2", ... */
+    public Variant unit(String... squares) {
+        int[] u = new int[squares.length];
+        for (int i = 0; i < squares.length; i++)
+            u[i] = square(squares[i]);
+        return unit(u);
+    }
+
+    /* An extra unit of 9 square indexes. */
+    public Variant unit(int... squares) {
+        if (squares.length != SIZE)
+            throw new IllegalArgumentException("A unit needs " + SIZE + " squares, not " + squares.length);
+        for (int s: squares) {
+            if (s < 0 || s >= CELLS)
+                throw new IllegalArgumentException("No square " + s);
+        }
+        int[] sorted = squares.clone();
+        Arrays.sort(sorted);
+        for (int i = 1; i < SIZE; i++) {
+            if (sorted[i] == sorted[i - 1])
+                throw new IllegalArgumentException("Square " + Validator.squareName(sorted[i]) + " is in a unit twice");
+        }
+        units.add(squares.clone());
+        return this;
+    }
+
+    /*
+     * Compile to flat index tables.  A unit listed twice is kept once, and
+     * every square must belong to at least one unit.
+     */
+    public Topology compile() {
+        List<int[]> distinct = new ArrayList<int[]>();
+        List<int[]> keys = new ArrayList<int[]>();
+        boolean[] covered = new boolean[CELLS];
+        for (int[] u: units) {
+            int[] key = u.clone();
+            Arrays.sort(key);
+            boolean dup = false;
+            for (int[] k: keys) {
+                if (Arrays.equals(k, key)) {
+                    dup = true;
+                    break;
+                }
+            }
+            if (dup)
+                continue;
+            keys.add(key);
+            distinct.add(u);
+            for (int s: u)
+                covered[s] = true;
+        }
+        for (int s = 0; s < CELLS; s++) {
+            if (!covered[s])
+                throw new IllegalArgumentException("Square " + Validator.squareName(s) + " is in no unit of " + name);
+        }
+        return new Topology(name, distinct.toArray(new int[distinct.size()][]));
+    }
+
+    /* Square index of a name like "C7". */
+    static int square(String name) {
+        if (name.length() != 2)
+            throw new IllegalArgumentException("No square " + name);
+        int r = Character.toUpperCase(name.charAt(0)) - 'A';
+        int c = name.charAt(1) - '1';
+        if (r < 0 || r >= SIZE || c < 0 || c >= SIZE)
+            throw new IllegalArgumentException("No square " + name);
+        return r * SIZE + c;
+    }
+
+    /* The 3x3 block whose top left square is at row r, column c. */
+    private static int[] block(int r, int c) {
+        int[] u = new int[SIZE];
+        for (int k = 0; k < SIZE; k++)
+            u[k] = (r + k / 3) * SIZE + c + k % 3;
+        return u;
+    }
+}